@@ -0,0 +1,126 @@
+package de.matrixweb.smaller.maven.plugin.node;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Extraction of an npm tarball shaped like a typical package, with many small
+ * sources and a few larger files.
+ *
+ * @author markusw
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ExtractorBenchmark {
+
+  private static final Logger LOG = new Logger() {
+    @Override
+    public void info(final String message) {
+    }
+
+    @Override
+    public void debug(final String message) {
+    }
+
+    @Override
+    public void warn(final String message) {
+    }
+  };
+
+  @Param({ "true", "false" })
+  private boolean streaming;
+
+  @Param({ "true", "false" })
+  private boolean useJavaGzip;
+
+  private byte[] tarball;
+
+  private File base;
+
+  private int run = 0;
+
+  /**
+   * @throws IOException
+   */
+  @Setup
+  public void setUp() throws IOException {
+    final Random random = new Random(0);
+    final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    final TarArchiveOutputStream tar = new TarArchiveOutputStream(
+        new GZIPOutputStream(bout));
+    try {
+      add(tar, "package/package.json",
+          "{\"name\":\"bench\",\"version\":\"1.0.0\"}".getBytes("UTF-8"));
+      for (int i = 0; i < 200; i++) {
+        add(tar, "package/lib/module" + i + ".js", source(random, 2000));
+      }
+      for (int i = 0; i < 4; i++) {
+        add(tar, "package/dist/bundle" + i + ".js", source(random, 500000));
+      }
+    } finally {
+      tar.close();
+    }
+    this.tarball = bout.toByteArray();
+    this.base = new File("target/benchmark/extractor");
+    FileUtils.deleteDirectory(this.base);
+  }
+
+  private static void add(final TarArchiveOutputStream tar, final String name,
+      final byte[] content) throws IOException {
+    final TarArchiveEntry entry = new TarArchiveEntry(name);
+    entry.setSize(content.length);
+    tar.putArchiveEntry(entry);
+    tar.write(content);
+    tar.closeArchiveEntry();
+  }
+
+  private static byte[] source(final Random random, final int size) {
+    final String words = "var function return if else for while this ";
+    final byte[] content = new byte[size];
+    for (int i = 0; i < size; i++) {
+      content[i] = (byte) words.charAt(random.nextInt(words.length()));
+    }
+    return content;
+  }
+
+  /**
+   * @throws IOException
+   */
+  @TearDown(Level.Iteration)
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(this.base);
+  }
+
+  /**
+   * @return the extracted package
+   * @throws IOException
+   */
+  @Benchmark
+  public File uncompress() throws IOException {
+    final File target = new File(this.base, String.valueOf(this.run++));
+    Extractor.uncompress("bench", LOG, new ByteArrayInputStream(this.tarball),
+        target, this.useJavaGzip, this.streaming);
+    return target;
+  }
+
+}
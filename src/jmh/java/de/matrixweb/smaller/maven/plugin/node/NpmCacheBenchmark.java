@@ -0,0 +1,86 @@
+package de.matrixweb.smaller.maven.plugin.node;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Reading and writing entries of the npm cache.
+ *
+ * @author markusw
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class NpmCacheBenchmark {
+
+  private static final String URL = "http://registry.npmjs.org/bench/-/bench-1.0.0.tgz";
+
+  @Param({ "4096", "1048576" })
+  private int size;
+
+  private byte[] content;
+
+  private File base;
+
+  private NpmCache cache;
+
+  /**
+   * @throws IOException
+   */
+  @Setup
+  public void setUp() throws IOException {
+    this.content = new byte[this.size];
+    new Random(0).nextBytes(this.content);
+    this.base = new File("target/benchmark/npm-cache");
+    FileUtils.deleteDirectory(this.base);
+    this.cache = new NpmCache(this.base);
+    this.cache.put(URL, new ByteArrayInputStream(this.content));
+  }
+
+  /**
+   * @throws IOException
+   */
+  @TearDown
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(this.base);
+  }
+
+  /**
+   * @throws IOException
+   */
+  @Benchmark
+  public void put() throws IOException {
+    this.cache.put(URL, new ByteArrayInputStream(this.content));
+  }
+
+  /**
+   * @return the cached content
+   * @throws IOException
+   */
+  @Benchmark
+  public byte[] get() throws IOException {
+    final InputStream in = this.cache.get(URL);
+    try {
+      return IOUtils.toByteArray(in);
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+  }
+
+}
@@ -0,0 +1,124 @@
+package de.matrixweb.smaller.maven.plugin.node;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Version parsing, range compilation and matching against a packument with
+ * thousands of versions.
+ *
+ * @author markusw
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SemanticVersionBenchmark {
+
+  private static final String[] RANGES = { "1.x", "~2.3.0", "4.5.x",
+      ">=3.0.0 <3.5.0", "<=7.2.0", "*", "9.9.9", "~0.1" };
+
+  @Param({ "100", "3000" })
+  private int count;
+
+  private List<String> versions;
+
+  private Versions index;
+
+  private ParsedVersion version;
+
+  /** */
+  @Setup
+  public void setUp() {
+    this.versions = new ArrayList<String>(this.count);
+    for (int i = 0; this.versions.size() < this.count; i++) {
+      final String version = i / 400 + "." + i / 20 % 20 + "." + i % 20;
+      this.versions.add(version);
+      if (i % 50 == 0) {
+        this.versions.add(version + "-beta." + i % 3);
+      }
+    }
+    // Registries return the versions in publish order, not sorted
+    Collections.shuffle(this.versions, new Random(0));
+    this.index = new Versions(this.versions);
+    this.version = ParsedVersion.parse("2.3.11");
+  }
+
+  /**
+   * @return the parsed versions
+   */
+  @Benchmark
+  public int parse() {
+    int n = 0;
+    for (final String version : this.versions) {
+      if (ParsedVersion.parse(version) != null) {
+        n++;
+      }
+    }
+    return n;
+  }
+
+  /**
+   * @return the compiled ranges
+   */
+  @Benchmark
+  public Range[] compileRange() {
+    final Range[] ranges = new Range[RANGES.length];
+    for (int i = 0; i < RANGES.length; i++) {
+      ranges[i] = new Range(RANGES[i]);
+    }
+    return ranges;
+  }
+
+  /**
+   * @return the satisfied ranges
+   */
+  @Benchmark
+  public int satisfies() {
+    int n = 0;
+    for (final String range : RANGES) {
+      if (Range.compile(range).satisfies(this.version)) {
+        n++;
+      }
+    }
+    return n;
+  }
+
+  /**
+   * @return the matches found after sorting the versions
+   * @throws IOException
+   */
+  @Benchmark
+  public String[] getBestMatch() throws IOException {
+    final String[] matches = new String[RANGES.length];
+    for (int i = 0; i < RANGES.length; i++) {
+      matches[i] = SemanticVersion.getBestMatch(this.versions, RANGES[i]);
+    }
+    return matches;
+  }
+
+  /**
+   * @return the matches answered from the match cache
+   */
+  @Benchmark
+  public String[] getBestMatchCached() {
+    final String[] matches = new String[RANGES.length];
+    for (int i = 0; i < RANGES.length; i++) {
+      matches[i] = this.index.getBestMatch(RANGES[i]);
+    }
+    return matches;
+  }
+
+}
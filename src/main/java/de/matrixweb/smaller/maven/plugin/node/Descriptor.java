@@ -14,6 +14,8 @@ public class Descriptor {
 
   private Map<String, Descriptor.Version> versions;
 
+  private volatile Versions versionIndex;
+
   /**
    * @return the name
    */
@@ -57,6 +59,20 @@ public class Descriptor {
    */
   public void setVersions(final Map<String, Descriptor.Version> versions) {
     this.versions = versions;
+    this.versionIndex = null;
+  }
+
+  /**
+   * @return Returns the sorted versions of this package
+   */
+  Versions getVersionIndex() {
+    Versions index = this.versionIndex;
+    if (index == null) {
+      index = new Versions(this.versions != null ? this.versions.keySet()
+          : Collections.<String> emptySet());
+      this.versionIndex = index;
+    }
+    return index;
   }
 
   /** */
@@ -125,6 +141,10 @@ public class Descriptor {
 
       private String tarball;
 
+      private String shasum;
+
+      private String integrity;
+
       /**
        * @return the tarball
        */
@@ -140,6 +160,36 @@ public class Descriptor {
         this.tarball = tarball;
       }
 
+      /**
+       * @return the shasum
+       */
+      public String getShasum() {
+        return this.shasum;
+      }
+
+      /**
+       * @param shasum
+       *          the shasum to set
+       */
+      public void setShasum(final String shasum) {
+        this.shasum = shasum;
+      }
+
+      /**
+       * @return the integrity
+       */
+      public String getIntegrity() {
+        return this.integrity;
+      }
+
+      /**
+       * @param integrity
+       *          the integrity to set
+       */
+      public void setIntegrity(final String integrity) {
+        this.integrity = integrity;
+      }
+
     }
 
   }
@@ -0,0 +1,74 @@
+package de.matrixweb.smaller.maven.plugin.node;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parsed package descriptors of one build. The least recently used
+ * descriptors are evicted if more than the given number of descriptors are
+ * cached.
+ * 
+ * @author markusw
+ */
+class DescriptorCache {
+
+  private final Map<String, Descriptor> descriptors;
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  DescriptorCache(final int maxSize) {
+    this.descriptors = new LinkedHashMap<String, Descriptor>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(
+          final Map.Entry<String, Descriptor> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * @param name
+   *          The package name
+   * @return Returns the descriptor or null if it is not cached
+   */
+  Descriptor get(final String name) {
+    final Descriptor descriptor;
+    synchronized (this.descriptors) {
+      descriptor = this.descriptors.get(name);
+    }
+    (descriptor != null ? this.hits : this.misses).incrementAndGet();
+    return descriptor;
+  }
+
+  /**
+   * @param name
+   *          The package name
+   * @return Returns true if the descriptor is cached, without counting a hit
+   *         or miss
+   */
+  boolean contains(final String name) {
+    synchronized (this.descriptors) {
+      return this.descriptors.containsKey(name);
+    }
+  }
+
+  void put(final String name, final Descriptor descriptor) {
+    synchronized (this.descriptors) {
+      this.descriptors.put(name, descriptor);
+    }
+  }
+
+  long getHits() {
+    return this.hits.get();
+  }
+
+  long getMisses() {
+    return this.misses.get();
+  }
+
+}
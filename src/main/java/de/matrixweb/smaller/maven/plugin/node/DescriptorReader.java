@@ -0,0 +1,172 @@
+package de.matrixweb.smaller.maven.plugin.node;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+import de.matrixweb.smaller.maven.plugin.node.Descriptor.DistTags;
+import de.matrixweb.smaller.maven.plugin.node.Descriptor.Version;
+import de.matrixweb.smaller.maven.plugin.node.Descriptor.Version.Dist;
+
+/**
+ * Reads registry metadata with a streaming parser. Only the fields required
+ * to resolve and install a package are kept, everything else (readmes,
+ * scripts, maintainers, ...) is skipped without being bound.
+ *
+ * @author markusw
+ */
+class DescriptorReader {
+
+  private static final JsonFactory FACTORY = new JsonFactory();
+
+  /**
+   * Reads a package document, either the full one or the abbreviated install
+   * metadata.
+   */
+  static Descriptor readDescriptor(final InputStream in) throws IOException {
+    final JsonParser parser = FACTORY.createJsonParser(in);
+    try {
+      start(parser);
+      final Descriptor descriptor = new Descriptor();
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        final String field = parser.getCurrentName();
+        parser.nextToken();
+        if ("name".equals(field)) {
+          descriptor.setName(parser.getText());
+        } else if ("dist-tags".equals(field)) {
+          descriptor.setDistTags(readDistTags(parser));
+        } else if ("versions".equals(field)) {
+          descriptor.setVersions(readVersions(parser));
+        } else {
+          parser.skipChildren();
+        }
+      }
+      return descriptor;
+    } finally {
+      parser.close();
+    }
+  }
+
+  /**
+   * Reads the document of a single package version.
+   */
+  static Version readVersion(final InputStream in) throws IOException {
+    final JsonParser parser = FACTORY.createJsonParser(in);
+    try {
+      start(parser);
+      return readVersion(parser);
+    } finally {
+      parser.close();
+    }
+  }
+
+  private static void start(final JsonParser parser) throws IOException {
+    if (parser.nextToken() != JsonToken.START_OBJECT) {
+      throw new JsonParseException("Expected package document",
+          parser.getCurrentLocation());
+    }
+  }
+
+  private static DistTags readDistTags(final JsonParser parser)
+      throws IOException {
+    final DistTags distTags = new DistTags();
+    if (parser.getCurrentToken() == JsonToken.START_OBJECT) {
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        final String field = parser.getCurrentName();
+        parser.nextToken();
+        if ("latest".equals(field)) {
+          distTags.setLatest(parser.getText());
+        } else {
+          parser.skipChildren();
+        }
+      }
+    } else {
+      parser.skipChildren();
+    }
+    return distTags;
+  }
+
+  private static Map<String, Version> readVersions(final JsonParser parser)
+      throws IOException {
+    final Map<String, Version> versions = new HashMap<String, Version>();
+    if (parser.getCurrentToken() == JsonToken.START_OBJECT) {
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        final String version = parser.getCurrentName();
+        if (parser.nextToken() == JsonToken.START_OBJECT) {
+          versions.put(version, readVersion(parser));
+        } else {
+          parser.skipChildren();
+        }
+      }
+    } else {
+      parser.skipChildren();
+    }
+    return versions;
+  }
+
+  private static Version readVersion(final JsonParser parser)
+      throws IOException {
+    final Version version = new Version();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      final String field = parser.getCurrentName();
+      parser.nextToken();
+      if ("dependencies".equals(field)) {
+        version.setDependencies(readDependencies(parser));
+      } else if ("dist".equals(field)) {
+        version.setDist(readDist(parser));
+      } else {
+        parser.skipChildren();
+      }
+    }
+    return version;
+  }
+
+  private static Map<String, String> readDependencies(final JsonParser parser)
+      throws IOException {
+    // Some very old packages list their dependencies in an array, which is
+    // ignored
+    final Map<String, String> dependencies = new HashMap<String, String>();
+    if (parser.getCurrentToken() == JsonToken.START_OBJECT) {
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        final String name = parser.getCurrentName();
+        if (parser.nextToken().isScalarValue()) {
+          dependencies.put(name, parser.getText());
+        } else {
+          parser.skipChildren();
+        }
+      }
+    } else {
+      parser.skipChildren();
+    }
+    return dependencies;
+  }
+
+  private static Dist readDist(final JsonParser parser) throws IOException {
+    final Dist dist = new Dist();
+    if (parser.getCurrentToken() == JsonToken.START_OBJECT) {
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        final String field = parser.getCurrentName();
+        parser.nextToken();
+        if ("tarball".equals(field)) {
+          dist.setTarball(parser.getText());
+        } else if ("shasum".equals(field)) {
+          dist.setShasum(parser.getText());
+        } else if ("integrity".equals(field)) {
+          dist.setIntegrity(parser.getText());
+        } else {
+          parser.skipChildren();
+        }
+      }
+    } else {
+      parser.skipChildren();
+    }
+    return dist;
+  }
+
+}
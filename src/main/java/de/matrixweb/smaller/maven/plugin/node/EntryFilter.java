@@ -0,0 +1,124 @@
+package de.matrixweb.smaller.maven.plugin.node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Decides which files of a package are extracted. Paths are relative to the
+ * package root and separated by '/'. A glob containing a '/' is matched
+ * against the whole path, otherwise against each file and folder name, so
+ * <code>*.md</code> matches markdown files in every folder. <code>*</code>
+ * and <code>?</code> do not match a '/', <code>**</code> matches any number of
+ * folders. The package.json is always extracted.
+ *
+ * @author markusw
+ */
+class EntryFilter {
+
+  /**
+   * The folders removed by the deleteTestAndExampleFolders option.
+   */
+  static final List<String> TEST_AND_EXAMPLE_FOLDERS = Collections
+      .unmodifiableList(Arrays.asList("test/**", "tests/**", "example/**",
+          "examples/**"));
+
+  /**
+   * Extracts all files.
+   */
+  static final EntryFilter ALL = new EntryFilter(null, null);
+
+  private final List<Pattern> includes;
+
+  private final List<Pattern> excludes;
+
+  private final String fingerprint;
+
+  EntryFilter(final List<String> includes, final List<String> excludes) {
+    this.includes = compile(includes);
+    this.excludes = compile(excludes);
+    this.fingerprint = this.includes.isEmpty() && this.excludes.isEmpty() ? ""
+        : DigestUtils.shaHex(this.includes + "\n" + this.excludes).substring(
+            0, 8);
+  }
+
+  private static List<Pattern> compile(final List<String> globs) {
+    final List<Pattern> patterns = new ArrayList<Pattern>();
+    if (globs != null) {
+      for (final String glob : globs) {
+        patterns.add(toPattern(glob.trim()));
+      }
+    }
+    return patterns;
+  }
+
+  private static Pattern toPattern(final String glob) {
+    final String path = glob.startsWith("/") ? glob.substring(1) : glob;
+    final StringBuilder sb = new StringBuilder();
+    if (!glob.contains("/")) {
+      // Matches the name of a file or of one of its folders
+      sb.append("(?:.*/)?");
+    }
+    for (int i = 0; i < path.length(); i++) {
+      final char c = path.charAt(i);
+      if (c == '*' && i + 1 < path.length() && path.charAt(i + 1) == '*') {
+        if (i + 2 < path.length() && path.charAt(i + 2) == '/') {
+          sb.append("(?:.*/)?");
+          i += 2;
+        } else {
+          sb.append(".*");
+          i++;
+        }
+      } else if (c == '*') {
+        sb.append("[^/]*");
+      } else if (c == '?') {
+        sb.append("[^/]");
+      } else {
+        sb.append(Pattern.quote(String.valueOf(c)));
+      }
+    }
+    if (!glob.endsWith("**")) {
+      // A matching folder matches all its files
+      sb.append("(?:/.*)?");
+    }
+    return Pattern.compile(sb.toString());
+  }
+
+  /**
+   * @param path
+   *          The path relative to the package root
+   * @return Returns true if the file should be extracted
+   */
+  boolean accept(final String path) {
+    if ("package.json".equals(path)) {
+      return true;
+    }
+    if (!this.includes.isEmpty() && !matches(this.includes, path)) {
+      return false;
+    }
+    return !matches(this.excludes, path);
+  }
+
+  private static boolean matches(final List<Pattern> patterns,
+      final String path) {
+    for (final Pattern pattern : patterns) {
+      if (pattern.matcher(path).matches()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return Returns a short hash identifying the globs of this filter or an
+   *         empty string if all files are extracted
+   */
+  String getFingerprint() {
+    return this.fingerprint;
+  }
+
+}
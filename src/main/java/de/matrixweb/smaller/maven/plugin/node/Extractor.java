@@ -13,7 +13,6 @@ import org.apache.commons.compress.archivers.ArchiveException;
 import org.apache.commons.compress.archivers.ArchiveInputStream;
 import org.apache.commons.compress.archivers.ArchiveStreamFactory;
 import org.apache.commons.compress.compressors.CompressorException;
-import org.apache.commons.compress.compressors.CompressorInputStream;
 import org.apache.commons.compress.compressors.CompressorStreamFactory;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
@@ -29,19 +28,48 @@ class Extractor {
   static void uncompress(final String name, final String version,
       final Logger log, final InputStream in, final File target,
       final boolean useJavaGzip) throws IOException {
-    uncompress(name + '@' + version, log, in, target, useJavaGzip);
+    uncompress(name, version, log, in, target, useJavaGzip, true);
+  }
+
+  static void uncompress(final String name, final String version,
+      final Logger log, final InputStream in, final File target,
+      final boolean useJavaGzip, final boolean streaming) throws IOException {
+    uncompress(name, version, log, in, target, useJavaGzip, streaming,
+        EntryFilter.ALL);
+  }
+
+  static void uncompress(final String name, final String version,
+      final Logger log, final InputStream in, final File target,
+      final boolean useJavaGzip, final boolean streaming,
+      final EntryFilter filter) throws IOException {
+    uncompress(name + '@' + version, log, in, target, useJavaGzip, streaming,
+        filter);
   }
 
   static void uncompress(final String name, final Logger log,
       final InputStream in, final File target) throws IOException {
-    uncompress(name, log, in, target, false);
+    uncompress(name, log, in, target, false, true);
   }
 
   static void uncompress(final String name, final Logger log,
-      final InputStream in, final File target, final boolean useJavaGzip)
-      throws IOException {
+      final InputStream in, final File target, final boolean useJavaGzip,
+      final boolean streaming) throws IOException {
+    uncompress(name, log, in, target, useJavaGzip, streaming, EntryFilter.ALL);
+  }
+
+  /**
+   * Extracts the files of the archive accepted by the given filter. All other
+   * entries are skipped without being written.
+   */
+  static void uncompress(final String name, final Logger log,
+      final InputStream in, final File target, final boolean useJavaGzip,
+      final boolean streaming, final EntryFilter filter) throws IOException {
     try {
-      uncompress(log, in, target, useJavaGzip);
+      if (streaming) {
+        uncompress(log, decompress(in, useJavaGzip), target, filter);
+      } else {
+        uncompressBuffered(log, in, target, useJavaGzip, filter);
+      }
     } catch (final CompressorException e) {
       throw new IOException("Failed to decompress " + name, e);
     } catch (final ArchiveException e) {
@@ -52,30 +80,32 @@ class Extractor {
     }
   }
 
-  static void uncompress(final Logger log, final InputStream in,
-      final File target, final boolean useJavaGzip) throws IOException,
-      CompressorException, ArchiveException {
+  private static InputStream decompress(final InputStream in,
+      final boolean useJavaGzip) throws IOException, CompressorException {
+    if (useJavaGzip) {
+      return new GZIPInputStream(in);
+    }
+    final CompressorStreamFactory csf = new CompressorStreamFactory();
+    csf.setDecompressConcatenated(true);
+    return csf.createCompressorInputStream(new BufferedInputStream(in));
+  }
+
+  /**
+   * Decompresses the whole archive into a temporary file before extracting
+   * it. This is slower than streaming, but does not write any file into the
+   * target if the archive is corrupt.
+   */
+  private static void uncompressBuffered(final Logger log,
+      final InputStream in, final File target, final boolean useJavaGzip,
+      final EntryFilter filter) throws IOException, CompressorException,
+      ArchiveException {
     final File temp = File.createTempFile("smaller-npm", ".tar");
     try {
-      if (!useJavaGzip) {
-        final CompressorStreamFactory csf = new CompressorStreamFactory();
-        csf.setDecompressConcatenated(true);
-        final CompressorInputStream cin = csf
-            .createCompressorInputStream(new BufferedInputStream(in));
-        FileUtils.copyInputStreamToFile(cin, temp);
-      } else {
-        FileUtils.copyInputStreamToFile(new GZIPInputStream(in), temp);
-      }
+      FileUtils.copyInputStreamToFile(decompress(in, useJavaGzip), temp);
 
       final FileInputStream fin = new FileInputStream(temp);
       try {
-        final ArchiveInputStream ain = new ArchiveStreamFactory()
-            .createArchiveInputStream(new BufferedInputStream(fin));
-        ArchiveEntry entry = ain.getNextEntry();
-        while (entry != null) {
-          extractEntry(log, target, ain, entry);
-          entry = ain.getNextEntry();
-        }
+        uncompress(log, fin, target, filter);
       } finally {
         IOUtils.closeQuietly(fin);
       }
@@ -84,13 +114,29 @@ class Extractor {
     }
   }
 
+  private static void uncompress(final Logger log, final InputStream tar,
+      final File target, final EntryFilter filter) throws IOException,
+      ArchiveException {
+    final ArchiveInputStream ain = new ArchiveStreamFactory()
+        .createArchiveInputStream(new BufferedInputStream(tar));
+    ArchiveEntry entry = ain.getNextEntry();
+    while (entry != null) {
+      extractEntry(log, target, ain, entry, filter);
+      entry = ain.getNextEntry();
+    }
+  }
+
   private static void extractEntry(final Logger log, final File target,
-      final ArchiveInputStream ain, final ArchiveEntry entry)
-      throws IOException {
+      final ArchiveInputStream ain, final ArchiveEntry entry,
+      final EntryFilter filter) throws IOException {
     String name = entry.getName();
     if (name.startsWith("package")) {
       name = name.substring("package/".length());
     }
+    if (!entry.isDirectory() && !filter.accept(name)) {
+      log.debug("... skipping " + name);
+      return;
+    }
     log.debug("... extracting " + name);
     final File file = new File(target, name);
     if (!entry.isDirectory()) {
@@ -101,6 +147,9 @@ class Extractor {
         long len = entry.getSize();
         int read = ain.read(buf, 0, Math.min(4096, (int) len));
         while (len > 0) {
+          if (read == -1) {
+            throw new IOException("Unexpected end of archive in " + name);
+          }
           len -= read;
           out.write(buf, 0, read);
           if (len > 0) {
@@ -0,0 +1,76 @@
+package de.matrixweb.smaller.maven.plugin.node;
+
+import java.io.IOException;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.fluent.Executor;
+import org.apache.http.client.fluent.Request;
+import org.apache.http.client.fluent.Response;
+import org.apache.http.client.protocol.RequestAcceptEncoding;
+import org.apache.http.client.protocol.ResponseContentEncoding;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * The http client shared by all registry and tarball requests of a build.
+ * Connections are pooled and kept alive between requests, and responses are
+ * transferred gzip compressed if the server supports it.
+ * 
+ * @author markusw
+ */
+class Http {
+
+  private final PoolingClientConnectionManager connections;
+
+  private final Executor executor;
+
+  Http() {
+    this(8, 10000, 60000, 30000);
+  }
+
+  /**
+   * @param maxConnections
+   *          The maximum number of open connections, also per host
+   * @param connectTimeout
+   *          The connect timeout in milliseconds
+   * @param readTimeout
+   *          The read timeout in milliseconds
+   * @param keepAlive
+   *          The time in milliseconds an idle connection is kept open, if the
+   *          server does not specify it
+   */
+  Http(final int maxConnections, final int connectTimeout,
+      final int readTimeout, final long keepAlive) {
+    this.connections = new PoolingClientConnectionManager();
+    this.connections.setMaxTotal(maxConnections);
+    this.connections.setDefaultMaxPerRoute(maxConnections);
+
+    final DefaultHttpClient client = new DefaultHttpClient(this.connections);
+    HttpConnectionParams.setConnectionTimeout(client.getParams(),
+        connectTimeout);
+    HttpConnectionParams.setSoTimeout(client.getParams(), readTimeout);
+    client.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+      @Override
+      public long getKeepAliveDuration(final HttpResponse response,
+          final HttpContext context) {
+        final long duration = super.getKeepAliveDuration(response, context);
+        return duration > 0 ? duration : keepAlive;
+      }
+    });
+    client.addRequestInterceptor(new RequestAcceptEncoding());
+    client.addResponseInterceptor(new ResponseContentEncoding());
+    this.executor = Executor.newInstance(client);
+  }
+
+  Response execute(final Request request) throws IOException {
+    return this.executor.execute(request);
+  }
+
+  void shutdown() {
+    this.connections.shutdown();
+  }
+
+}
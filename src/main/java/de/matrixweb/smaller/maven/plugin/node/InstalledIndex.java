@@ -0,0 +1,164 @@
+package de.matrixweb.smaller.maven.plugin.node;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import org.codehaus.jackson.map.DeserializationConfig.Feature;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * The installed packages by directory and name. The index is updated while
+ * packages are materialized, so the installed state is answered from memory
+ * instead of probing node_modules folders and parsing their package.json
+ * files. Directories are relative to the node_modules folder of the
+ * installation, the top-level packages are stored under the empty directory.
+ *
+ * @author markusw
+ */
+public class InstalledIndex {
+
+  private static final ObjectMapper OM;
+  static {
+    OM = new ObjectMapper();
+    OM.setDeserializationConfig(OM.getDeserializationConfig().without(
+        Feature.FAIL_ON_UNKNOWN_PROPERTIES));
+  }
+
+  private String settings;
+
+  private Map<String, Map<String, String>> packages = new TreeMap<String, Map<String, String>>();
+
+  /**
+   * @param file
+   *          The file to read the index from
+   * @param settings
+   *          The install settings the packages have to be installed with
+   * @return Returns the stored index or an empty one if there is none or it
+   *         was written for other settings
+   */
+  static InstalledIndex read(final File file, final String settings)
+      throws IOException {
+    if (file.exists()) {
+      final InstalledIndex index = OM.readValue(file, InstalledIndex.class);
+      if (settings.equals(index.settings) && index.packages != null) {
+        return index;
+      }
+    }
+    final InstalledIndex index = new InstalledIndex();
+    index.settings = settings;
+    return index;
+  }
+
+  synchronized void write(final File file) throws IOException {
+    file.getParentFile().mkdirs();
+    OM.writeValue(file, this);
+  }
+
+  synchronized void add(final String dir, final String name,
+      final String version) {
+    Map<String, String> names = this.packages.get(dir);
+    if (names == null) {
+      names = new TreeMap<String, String>();
+      this.packages.put(dir, names);
+    }
+    names.put(name, version);
+  }
+
+  synchronized String getVersion(final String dir, final String name) {
+    final Map<String, String> names = this.packages.get(dir);
+    return names != null ? names.get(name) : null;
+  }
+
+  /**
+   * Removes a top-level package together with all its dependencies.
+   */
+  synchronized void remove(final String name) {
+    final Map<String, String> top = this.packages.get("");
+    if (top != null) {
+      top.remove(name);
+    }
+    final Iterator<String> it = this.packages.keySet().iterator();
+    while (it.hasNext()) {
+      if (it.next().startsWith(name + '/')) {
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * @return Returns true if exactly the given tree is installed as top-level
+   *         package
+   */
+  synchronized boolean contains(final Node tree) throws IOException {
+    final Map<String, Map<String, String>> expected = new HashMap<String, Map<String, String>>();
+    collect(tree, "", expected);
+    for (final Entry<String, Map<String, String>> entry : this.packages
+        .entrySet()) {
+      if (entry.getKey().startsWith(tree.getName() + '/')
+          && !entry.getValue().equals(expected.get(entry.getKey()))) {
+        return false;
+      }
+    }
+    for (final Entry<String, Map<String, String>> entry : expected.entrySet()) {
+      if (entry.getKey().length() > 0
+          && !entry.getValue().equals(this.packages.get(entry.getKey()))) {
+        return false;
+      }
+    }
+    return expected.get("").get(tree.getName()).equals(
+        getVersion("", tree.getName()));
+  }
+
+  private void collect(final Node node, final String dir,
+      final Map<String, Map<String, String>> expected) throws IOException {
+    Map<String, String> names = expected.get(dir);
+    if (names == null) {
+      names = new TreeMap<String, String>();
+      expected.put(dir, names);
+    }
+    names.put(node.getName(), node.getPackage().getVersion());
+    for (final Node child : node.getChildren().values()) {
+      collect(child, childDir(dir, node.getName()), expected);
+    }
+  }
+
+  static String childDir(final String dir, final String name) {
+    return (dir.length() > 0 ? dir + '/' : "") + name + "/node_modules";
+  }
+
+  /**
+   * @return the settings
+   */
+  public String getSettings() {
+    return this.settings;
+  }
+
+  /**
+   * @param settings
+   *          the settings to set
+   */
+  public void setSettings(final String settings) {
+    this.settings = settings;
+  }
+
+  /**
+   * @return the packages
+   */
+  public Map<String, Map<String, String>> getPackages() {
+    return this.packages;
+  }
+
+  /**
+   * @param packages
+   *          the packages to set
+   */
+  public void setPackages(final Map<String, Map<String, String>> packages) {
+    this.packages = packages;
+  }
+
+}
@@ -0,0 +1,71 @@
+package de.matrixweb.smaller.maven.plugin.node;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Installs a package together with its dependencies in two phases. First the
+ * complete dependency tree is resolved in memory, then it is written to disk.
+ * Both phases run their network and disk operations on a shared pool of
+ * worker threads.
+ * 
+ * @author markusw
+ */
+class Installer {
+
+  private final WorkerPool workers;
+
+  private final Resolver resolver;
+
+  private final Materializer materializer;
+
+  private final List<Node> trees = new ArrayList<Node>();
+
+  Installer(final Logger log, final NpmCache cache, final int threads,
+      final EntryFilter filter) {
+    this.workers = new WorkerPool(threads);
+    this.resolver = new Resolver(log, cache, this.workers);
+    this.materializer = new Materializer(log, this.workers, new PackageStore(
+        new File(cache.getBase(), "store"), log), filter);
+  }
+
+  void install(final PackageInfo pkg, final File installDir)
+      throws IOException {
+    materialize(resolve(pkg), installDir, new InstalledIndex());
+  }
+
+  Node resolve(final PackageInfo pkg) throws IOException {
+    return this.resolver.resolve(pkg);
+  }
+
+  void materialize(final Node tree, final File installDir,
+      final InstalledIndex installed) throws IOException {
+    register(tree);
+    this.materializer.materialize(tree, installDir, installed);
+  }
+
+  /**
+   * Registers a tree whose temporary files are removed on shutdown.
+   */
+  void register(final Node tree) {
+    this.trees.add(tree);
+  }
+
+  void shutdown() throws IOException {
+    this.workers.shutdown();
+    for (final Node tree : this.trees) {
+      dispose(tree);
+    }
+    this.resolver.dispose();
+  }
+
+  private void dispose(final Node node) throws IOException {
+    node.getPackage().dispose();
+    for (final Node child : node.getChildren().values()) {
+      dispose(child);
+    }
+  }
+
+}
@@ -0,0 +1,108 @@
+package de.matrixweb.smaller.maven.plugin.node;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * The expected digest of a tarball, taken from the subresource integrity
+ * string of the registry or from its sha1 shasum.
+ *
+ * @author markusw
+ */
+class Integrity {
+
+  // Strongest first
+  private static final String[] ALGORITHMS = { "sha512", "sha384", "sha256",
+      "sha1" };
+
+  private final String algorithm;
+
+  private final byte[] digest;
+
+  private Integrity(final String algorithm, final byte[] digest) {
+    this.algorithm = algorithm;
+    this.digest = digest;
+  }
+
+  /**
+   * @param integrity
+   *          The subresource integrity string, e.g. <code>sha512-...</code>,
+   *          or null
+   * @param shasum
+   *          The hex encoded sha1 checksum or null
+   * @return Returns the strongest known digest or null if there is none
+   */
+  static Integrity create(final String integrity, final String shasum) {
+    if (integrity != null) {
+      final String[] hashes = integrity.trim().split("\\s+");
+      for (final String algorithm : ALGORITHMS) {
+        for (final String hash : hashes) {
+          if (hash.startsWith(algorithm + '-')) {
+            // Options after a '?' are reserved by the specification
+            String value = hash.substring(algorithm.length() + 1);
+            final int options = value.indexOf('?');
+            if (options > -1) {
+              value = value.substring(0, options);
+            }
+            return new Integrity(algorithm, Base64.decodeBase64(value));
+          }
+        }
+      }
+    }
+    if (shasum != null) {
+      try {
+        return new Integrity("sha1", Hex.decodeHex(shasum.toCharArray()));
+      } catch (final DecoderException e) {
+        return null;
+      }
+    }
+    return null;
+  }
+
+  MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance(this.algorithm.replace("sha", "SHA-"));
+    } catch (final NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  boolean matches(final MessageDigest digest) {
+    return Arrays.equals(this.digest, digest.digest());
+  }
+
+  boolean matches(final File file) throws IOException {
+    final MessageDigest digest = newDigest();
+    final InputStream in = new FileInputStream(file);
+    try {
+      final byte[] buf = new byte[8192];
+      int read = in.read(buf);
+      while (read > -1) {
+        digest.update(buf, 0, read);
+        read = in.read(buf);
+      }
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+    return matches(digest);
+  }
+
+  /**
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return this.algorithm + '-' + Base64.encodeBase64String(this.digest);
+  }
+
+}
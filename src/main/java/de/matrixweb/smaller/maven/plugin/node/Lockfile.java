@@ -0,0 +1,245 @@
+package de.matrixweb.smaller.maven.plugin.node;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import org.codehaus.jackson.map.DeserializationConfig.Feature;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.annotate.JsonSerialize.Inclusion;
+
+/**
+ * The resolved dependency trees of all configured packages. Replaying a
+ * lockfile installs exactly the recorded versions without requesting any
+ * package descriptor from the registry.
+ *
+ * @author markusw
+ */
+public class Lockfile {
+
+  private static final ObjectMapper OM;
+  static {
+    OM = new ObjectMapper();
+    OM.setDeserializationConfig(OM.getDeserializationConfig().without(
+        Feature.FAIL_ON_UNKNOWN_PROPERTIES));
+    OM.setSerializationInclusion(Inclusion.NON_EMPTY);
+  }
+
+  private Map<String, Lockfile.Dependency> packages;
+
+  static Lockfile read(final File file) throws IOException {
+    if (!file.exists()) {
+      return null;
+    }
+    return OM.readValue(file, Lockfile.class);
+  }
+
+  static Lockfile create(final Map<String, Node> trees) throws IOException {
+    final Lockfile lockfile = new Lockfile();
+    lockfile.packages = new LinkedHashMap<String, Lockfile.Dependency>();
+    for (final Entry<String, Node> entry : trees.entrySet()) {
+      lockfile.packages.put(entry.getKey(), Dependency.create(entry.getValue()));
+    }
+    return lockfile;
+  }
+
+  void write(final File file) throws IOException {
+    file.getParentFile().mkdirs();
+    OM.writerWithDefaultPrettyPrinter().writeValue(file, this);
+  }
+
+  /**
+   * @param specs
+   *          The configured packages
+   * @return Returns true if this lockfile was created for exactly the given
+   *         packages
+   */
+  boolean isUpToDate(final List<String> specs) {
+    return this.packages != null
+        && new ArrayList<String>(this.packages.keySet()).equals(specs);
+  }
+
+  Node toTree(final String spec, final Logger log, final NpmCache cache)
+      throws IOException {
+    return this.packages.get(spec).toNode(spec, null, log, cache);
+  }
+
+  /**
+   * @return the packages
+   */
+  public Map<String, Lockfile.Dependency> getPackages() {
+    return this.packages;
+  }
+
+  /**
+   * @param packages
+   *          the packages to set
+   */
+  public void setPackages(final Map<String, Lockfile.Dependency> packages) {
+    this.packages = packages;
+  }
+
+  /** */
+  public static class Dependency {
+
+    private String name;
+
+    private String version;
+
+    private String range;
+
+    private String tarball;
+
+    private String shasum;
+
+    private String integrity;
+
+    private Map<String, Lockfile.Dependency> dependencies;
+
+    static Dependency create(final Node node) throws IOException {
+      final PackageInfo pkg = node.getPackage();
+      final Dependency dependency = new Dependency();
+      dependency.name = pkg.getName();
+      dependency.version = pkg.getVersion();
+      dependency.range = node.getRange();
+      dependency.tarball = pkg.getTarball();
+      dependency.shasum = pkg.getShasum();
+      dependency.integrity = pkg.getIntegrity();
+      dependency.dependencies = new TreeMap<String, Lockfile.Dependency>();
+      for (final Node child : node.getChildren().values()) {
+        dependency.dependencies.put(child.getName(), create(child));
+      }
+      return dependency;
+    }
+
+    Node toNode(final String spec, final Node parent, final Logger log,
+        final NpmCache cache) throws IOException {
+      // Packages from git or tarball urls have to be fetched again
+      final PackageInfo pkg = this.tarball != null ? PackageInfo.locked(
+          this.name, this.version, this.tarball, this.shasum, this.integrity,
+          log, cache)
+          : PackageInfo.createPackage(spec, log, cache);
+      final Node node = parent != null ? parent.addChild(this.range, pkg)
+          : new Node(null, pkg, null);
+      if (this.dependencies != null) {
+        for (final Dependency child : this.dependencies.values()) {
+          child.toNode(child.range, node, log, cache);
+        }
+      }
+      return node;
+    }
+
+    /**
+     * @return the name
+     */
+    public String getName() {
+      return this.name;
+    }
+
+    /**
+     * @param name
+     *          the name to set
+     */
+    public void setName(final String name) {
+      this.name = name;
+    }
+
+    /**
+     * @return the version
+     */
+    public String getVersion() {
+      return this.version;
+    }
+
+    /**
+     * @param version
+     *          the version to set
+     */
+    public void setVersion(final String version) {
+      this.version = version;
+    }
+
+    /**
+     * @return the range
+     */
+    public String getRange() {
+      return this.range;
+    }
+
+    /**
+     * @param range
+     *          the range to set
+     */
+    public void setRange(final String range) {
+      this.range = range;
+    }
+
+    /**
+     * @return the tarball
+     */
+    public String getTarball() {
+      return this.tarball;
+    }
+
+    /**
+     * @param tarball
+     *          the tarball to set
+     */
+    public void setTarball(final String tarball) {
+      this.tarball = tarball;
+    }
+
+    /**
+     * @return the shasum
+     */
+    public String getShasum() {
+      return this.shasum;
+    }
+
+    /**
+     * @param shasum
+     *          the shasum to set
+     */
+    public void setShasum(final String shasum) {
+      this.shasum = shasum;
+    }
+
+    /**
+     * @return the integrity
+     */
+    public String getIntegrity() {
+      return this.integrity;
+    }
+
+    /**
+     * @param integrity
+     *          the integrity to set
+     */
+    public void setIntegrity(final String integrity) {
+      this.integrity = integrity;
+    }
+
+    /**
+     * @return the dependencies
+     */
+    public Map<String, Lockfile.Dependency> getDependencies() {
+      return this.dependencies;
+    }
+
+    /**
+     * @param dependencies
+     *          the dependencies to set
+     */
+    public void setDependencies(
+        final Map<String, Lockfile.Dependency> dependencies) {
+      this.dependencies = dependencies;
+    }
+
+  }
+
+}
@@ -15,4 +15,9 @@ public interface Logger {
    */
   void debug(String message);
 
+  /**
+   * @param message
+   */
+  void warn(String message);
+
 }
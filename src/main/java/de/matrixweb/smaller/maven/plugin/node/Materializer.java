@@ -0,0 +1,70 @@
+package de.matrixweb.smaller.maven.plugin.node;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Writes a resolved dependency tree to disk. Since the tree is complete before
+ * the first package is extracted, all packages are downloaded and extracted in
+ * one batch.
+ * 
+ * @author markusw
+ */
+class Materializer {
+
+  private final Logger log;
+
+  private final WorkerPool workers;
+
+  private final PackageStore store;
+
+  private final EntryFilter filter;
+
+  Materializer(final Logger log, final WorkerPool workers,
+      final PackageStore store, final EntryFilter filter) {
+    this.log = log;
+    this.workers = workers;
+    this.store = store;
+    this.filter = filter;
+  }
+
+  /**
+   * @param root
+   *          The tree to install
+   * @param installDir
+   *          The directory to install the top-level package into
+   * @param installed
+   *          The index to record each installed package in
+   */
+  void materialize(final Node root, final File installDir,
+      final InstalledIndex installed) throws IOException {
+    final List<Callable<File>> tasks = new ArrayList<Callable<File>>();
+    collect(root, installDir, "", installed, tasks);
+    this.log.debug("Installing " + tasks.size() + " package(s)");
+    this.workers.invokeAll(tasks);
+  }
+
+  private void collect(final Node node, final File installDir,
+      final String dir, final InstalledIndex installed,
+      final List<Callable<File>> tasks) {
+    tasks.add(new Callable<File>() {
+      @Override
+      public File call() throws IOException {
+        final File pkgDir = node.getPackage().installSources(installDir,
+            Materializer.this.store, Materializer.this.filter);
+        installed.add(dir, node.getName(), node.getPackage().getVersion());
+        return pkgDir;
+      }
+    });
+    final File nodeModules = new File(new File(installDir, node.getName()),
+        "node_modules");
+    for (final Node child : node.getChildren().values()) {
+      collect(child, nodeModules,
+          InstalledIndex.childDir(dir, node.getName()), installed, tasks);
+    }
+  }
+
+}
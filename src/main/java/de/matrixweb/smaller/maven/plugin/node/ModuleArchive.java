@@ -0,0 +1,98 @@
+package de.matrixweb.smaller.maven.plugin.node;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Packs a module folder into a single zip archive. The central directory of
+ * the zip allows the runtime to read single entries without unpacking the
+ * whole archive, e.g. by putting it on a class path. Entries are written
+ * sorted and with a fixed time, so an unchanged folder results in an
+ * identical archive.
+ *
+ * @author markusw
+ */
+class ModuleArchive {
+
+  // 2000-01-01, zip entries could not store times before 1980
+  private static final long ENTRY_TIME = 946684800000L;
+
+  private ModuleArchive() {
+  }
+
+  /**
+   * @param dir
+   *          The folder to pack
+   * @param archive
+   *          The archive to write
+   * @param prefix
+   *          The folder of all entries in the archive, e.g. 'name-1.0.0/'
+   * @return Returns true if the archive was written, false if it was already
+   *         up to date
+   * @throws IOException
+   */
+  static boolean write(final File dir, final File archive, final String prefix)
+      throws IOException {
+    archive.getParentFile().mkdirs();
+    final File temp = new File(archive.getParentFile(), '.'
+        + archive.getName() + ".tmp");
+    final ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(
+        new FileOutputStream(temp)));
+    try {
+      add(out, dir, prefix);
+    } finally {
+      out.close();
+    }
+    if (archive.exists() && FileUtils.contentEquals(temp, archive)) {
+      FileUtils.deleteQuietly(temp);
+      return false;
+    }
+    FileUtils.deleteQuietly(archive);
+    if (!temp.renameTo(archive)) {
+      FileUtils.copyFile(temp, archive);
+      FileUtils.deleteQuietly(temp);
+    }
+    return true;
+  }
+
+  private static void add(final ZipOutputStream out, final File dir,
+      final String prefix) throws IOException {
+    final File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files);
+    for (final File file : files) {
+      final String path = prefix + file.getName();
+      if (file.isDirectory()) {
+        final ZipEntry entry = new ZipEntry(path + '/');
+        entry.setTime(ENTRY_TIME);
+        out.putNextEntry(entry);
+        out.closeEntry();
+        add(out, file, path + '/');
+      } else {
+        final ZipEntry entry = new ZipEntry(path);
+        entry.setTime(ENTRY_TIME);
+        out.putNextEntry(entry);
+        final InputStream in = new FileInputStream(file);
+        try {
+          IOUtils.copy(in, out);
+        } finally {
+          IOUtils.closeQuietly(in);
+        }
+        out.closeEntry();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,72 @@
+package de.matrixweb.smaller.maven.plugin.node;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A resolved package at its position in the node_modules tree.
+ * 
+ * @author markusw
+ */
+class Node {
+
+  private final String range;
+
+  private final PackageInfo pkg;
+
+  private final Node parent;
+
+  private final Map<String, Node> children = new TreeMap<String, Node>();
+
+  Node(final String range, final PackageInfo pkg, final Node parent) {
+    this.range = range;
+    this.pkg = pkg;
+    this.parent = parent;
+  }
+
+  String getName() {
+    return this.pkg.getName();
+  }
+
+  /**
+   * @return the range this package was resolved for
+   */
+  String getRange() {
+    return this.range;
+  }
+
+  PackageInfo getPackage() {
+    return this.pkg;
+  }
+
+  Node getParent() {
+    return this.parent;
+  }
+
+  Map<String, Node> getChildren() {
+    return this.children;
+  }
+
+  Node addChild(final String range, final PackageInfo pkg) {
+    final Node child = new Node(range, pkg, this);
+    this.children.put(pkg.getName(), child);
+    return child;
+  }
+
+  /**
+   * Looks up the package node.js would load for the given name when required
+   * from this package. The search ends at the top-level package.
+   * 
+   * @param name
+   *          The package name
+   * @return Returns the found node or null
+   */
+  Node find(final String name) {
+    final Node child = this.children.get(name);
+    if (child != null) {
+      return child;
+    }
+    return this.parent != null ? this.parent.find(name) : null;
+  }
+
+}
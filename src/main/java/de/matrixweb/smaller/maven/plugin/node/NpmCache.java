@@ -2,21 +2,109 @@ package de.matrixweb.smaller.maven.plugin.node;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.fluent.Request;
 
 /**
+ * Downloads from the npm registry, stored by url. The cache could be shared
+ * by several builds and processes. All files are written to a temporary file
+ * first and then moved into place, so readers never see a partial file.
+ * Downloads and revalidations of an url are guarded by a file lock. Within
+ * one cache concurrent requests for the same url share a single download.
+ *
  * @author markusw
  */
 class NpmCache {
 
+  // A file lock is held by the whole process, so the threads of this process
+  // are serialized per lock file first. The locks are striped by the path of
+  // the lock file, urls sharing a stripe just wait for each other.
+  private static final ReentrantLock[] LOCKS = new ReentrantLock[64];
+
+  static {
+    for (int i = 0; i < LOCKS.length; i++) {
+      LOCKS[i] = new ReentrantLock();
+    }
+  }
+
   private final File base;
 
-  NpmCache(final File base) {
-    this.base = new File(base, "target/npm-cache");
+  private final DescriptorCache descriptors;
+
+  private final Http http;
+
+  private final ConcurrentMap<String, FutureTask<Void>> inFlight = new ConcurrentHashMap<String, FutureTask<Void>>();
+
+  private long metadataTtl = -1;
+
+  /**
+   * @param basedir
+   *          The project folder, the cache is created in its target/npm-cache
+   *          folder
+   */
+  NpmCache(final File basedir) {
+    this(new File(basedir, "target/npm-cache"), 1000, new Http());
+  }
+
+  /**
+   * @param base
+   *          The cache folder
+   * @param descriptorCacheSize
+   *          The maximum number of parsed descriptors kept in memory
+   * @param http
+   *          The http client
+   */
+  NpmCache(final File base, final int descriptorCacheSize, final Http http) {
+    this.base = base;
     this.base.mkdirs();
+    this.descriptors = new DescriptorCache(descriptorCacheSize);
+    this.http = http;
+  }
+
+  /**
+   * @return Returns the parsed descriptors shared by all packages of this
+   *         build
+   */
+  DescriptorCache getDescriptors() {
+    return this.descriptors;
+  }
+
+  /**
+   * @param metadataTtl
+   *          The time in milliseconds registry metadata is used before it is
+   *          revalidated. A negative value never revalidates cached metadata.
+   */
+  void setMetadataTtl(final long metadataTtl) {
+    this.metadataTtl = metadataTtl;
+  }
+
+  File getBase() {
+    return this.base;
   }
 
   private String mangle(final String in) {
@@ -27,6 +115,45 @@ class NpmCache {
     return new File(this.base, mangle(url));
   }
 
+  private File validators(final String url) {
+    return new File(this.base, "meta/" + mangle(url));
+  }
+
+  private File verified(final String url) {
+    return new File(this.base, "meta/" + mangle(url) + ".verified");
+  }
+
+  /**
+   * Locks the given url against other threads and processes using this
+   * cache. Must not be called again before the lock is released, not even
+   * for another url.
+   */
+  CacheLock lock(final String url) throws IOException {
+    final File file = new File(this.base, "locks/" + mangle(url) + ".lock");
+    file.getParentFile().mkdirs();
+    final int hash = file.getCanonicalPath().hashCode();
+    final ReentrantLock local = LOCKS[(hash & 0x7fffffff) % LOCKS.length];
+    local.lock();
+    RandomAccessFile raf = null;
+    try {
+      raf = new RandomAccessFile(file, "rw");
+      final CacheLock lock = new CacheLock(local, raf, raf.getChannel().lock());
+      raf = null;
+      return lock;
+    } finally {
+      if (raf != null) {
+        IOUtils.closeQuietly(raf);
+        local.unlock();
+      }
+    }
+  }
+
+  private boolean isUsable(final String url, final boolean forceUpdate,
+      final Integrity integrity) throws IOException {
+    return !forceUpdate && entry(url).exists()
+        && (integrity == null || isVerified(url, integrity));
+  }
+
   InputStream get(final String url) throws IOException {
     return get(url, false);
   }
@@ -37,6 +164,7 @@ class NpmCache {
     if (entry.exists()) {
       if (forceUpdate) {
         entry.delete();
+        verified(url).delete();
       } else {
         return new FileInputStream(entry);
       }
@@ -44,9 +172,404 @@ class NpmCache {
     return null;
   }
 
+  /**
+   * Returns the cached content of the given url if it has the expected
+   * digest. An entry is hashed at most once, afterwards it is marked as
+   * verified. A corrupt entry is removed.
+   * 
+   * @param url
+   *          The url
+   * @param forceUpdate
+   *          True to remove the cached entry
+   * @param integrity
+   *          The expected digest or null
+   * @return Returns the content or null if there is no valid entry
+   */
+  InputStream get(final String url, final boolean forceUpdate,
+      final Integrity integrity) throws IOException {
+    if (isUsable(url, forceUpdate, integrity)) {
+      return new FileInputStream(entry(url));
+    }
+    final CacheLock lock = lock(url);
+    try {
+      return getLocked(url, forceUpdate, integrity);
+    } finally {
+      lock.release();
+    }
+  }
+
+  private InputStream getLocked(final String url, final boolean forceUpdate,
+      final Integrity integrity) throws IOException {
+    final File entry = entry(url);
+    if (integrity != null && !forceUpdate && entry.exists()
+        && !isVerified(url, integrity)) {
+      if (integrity.matches(entry)) {
+        markVerified(url, integrity);
+      } else {
+        entry.delete();
+        verified(url).delete();
+      }
+    }
+    return get(url, forceUpdate);
+  }
+
+  InputStream fetch(final String url, final boolean forceUpdate,
+      final Logger log, final String message) throws IOException {
+    return fetch(url, forceUpdate, log, message, null);
+  }
+
+  /**
+   * Returns the content of the given url, downloading it if it is not cached
+   * yet.
+   * 
+   * @param url
+   *          The url to download
+   * @param forceUpdate
+   *          True to download the url even if it is cached
+   * @param log
+   *          The logger
+   * @param message
+   *          The message logged before downloading
+   * @param integrity
+   *          The expected digest or null. A download which does not match is
+   *          rejected before it is stored.
+   * @return Returns the content
+   */
+  InputStream fetch(final String url, final boolean forceUpdate,
+      final Logger log, final String message, final Integrity integrity)
+      throws IOException {
+    if (isUsable(url, forceUpdate, integrity)) {
+      return new FileInputStream(entry(url));
+    }
+    // Only requests with the same checks could share a download
+    singleFlight(url + ' ' + forceUpdate + ' ' + integrity, url,
+        new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            download(url, forceUpdate, log, message, integrity);
+            return null;
+          }
+        });
+    final InputStream in = get(url);
+    if (in == null) {
+      throw new IOException("Failed to download " + url);
+    }
+    return in;
+  }
+
+  private void download(final String url, final boolean forceUpdate,
+      final Logger log, final String message, final Integrity integrity)
+      throws IOException {
+    final CacheLock lock = lock(url);
+    try {
+      // Another process could have downloaded it while waiting for the lock
+      final InputStream in = getLocked(url, forceUpdate, integrity);
+      if (in != null) {
+        in.close();
+        return;
+      }
+      log.info(message + " " + url);
+      this.http.execute(Request.Get(url)).handleResponse(
+          new ResponseHandler<Void>() {
+            @Override
+            public Void handleResponse(final HttpResponse response)
+                throws IOException {
+              checkStatus(url, response);
+              store(url, response, integrity);
+              return null;
+            }
+          });
+    } finally {
+      lock.release();
+    }
+  }
+
+  /**
+   * Runs the given request unless a request with the same key is already
+   * running in another thread. In that case waits for the running request
+   * instead.
+   */
+  private void singleFlight(final String key, final String url,
+      final Callable<Void> request) throws IOException {
+    final FutureTask<Void> task = new FutureTask<Void>(request);
+    FutureTask<Void> running = this.inFlight.putIfAbsent(key, task);
+    if (running == null) {
+      running = task;
+      try {
+        task.run();
+      } finally {
+        this.inFlight.remove(key, task);
+      }
+    }
+    try {
+      running.get();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for " + url, e);
+    } catch (final ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      } else if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException("Failed to request " + url, e.getCause());
+    }
+  }
+
   void put(final String url, final InputStream in) throws IOException {
+    put(url, in, null);
+  }
+
+  /**
+   * Stores the content of the given url. The digest is computed while the
+   * content is written, a mismatching content is never stored.
+   */
+  void put(final String url, final InputStream in, final Integrity integrity)
+      throws IOException {
+    final File entry = entry(url);
+    // Write to a temporary file first, so concurrent readers never see a
+    // partially written entry
+    final File temp = File.createTempFile(entry.getName(), ".part", this.base);
+    try {
+      if (integrity != null) {
+        final MessageDigest digest = integrity.newDigest();
+        FileUtils.copyInputStreamToFile(new DigestInputStream(in, digest),
+            temp);
+        if (!integrity.matches(digest)) {
+          throw new IOException("Integrity check failed for " + url
+              + ", expected " + integrity);
+        }
+      } else {
+        FileUtils.copyInputStreamToFile(in, temp);
+      }
+      verified(url).delete();
+      move(temp, entry);
+      if (integrity != null) {
+        markVerified(url, integrity);
+      }
+    } finally {
+      temp.delete();
+    }
+  }
+
+  /**
+   * Returns the registry metadata for the given url. Metadata which is not
+   * cached yet is requested from the registry. Cached metadata older than the
+   * configured TTL is revalidated using its ETag and Last-Modified headers, so
+   * an unchanged document is not transferred again.
+   * 
+   * @param url
+   *          The metadata url
+   * @param accept
+   *          The media types to request or null
+   * @param log
+   *          The logger
+   * @return Returns the metadata
+   */
+  InputStream getMetadata(final String url, final String accept,
+      final Logger log) throws IOException {
     final File entry = entry(url);
-    FileUtils.copyInputStreamToFile(in, entry);
+    if (entry.exists() && !isExpired(entry)) {
+      return new FileInputStream(entry);
+    }
+    singleFlight(url, url, new Callable<Void>() {
+      @Override
+      public Void call() throws IOException {
+        final CacheLock lock = lock(url);
+        try {
+          // Another process could have revalidated it while waiting for the
+          // lock
+          if (!entry.exists() || isExpired(entry)) {
+            revalidate(url, accept, log);
+          }
+        } finally {
+          lock.release();
+        }
+        return null;
+      }
+    });
+    return new FileInputStream(entry);
+  }
+
+  private void revalidate(final String url, final String accept,
+      final Logger log) throws IOException {
+    final File entry = entry(url);
+    final Properties validators = readValidators(url);
+    final Request request = Request.Get(url);
+    if (accept != null) {
+      request.addHeader("Accept", accept);
+    }
+    if (entry.exists()) {
+      log.debug("Revalidating " + url);
+      if (validators.containsKey("etag")) {
+        request.addHeader("If-None-Match", validators.getProperty("etag"));
+      }
+      if (validators.containsKey("last-modified")) {
+        request.addHeader("If-Modified-Since",
+            validators.getProperty("last-modified"));
+      }
+    } else {
+      log.info("Requesting " + url);
+    }
+    try {
+      this.http.execute(request).handleResponse(new ResponseHandler<Void>() {
+        @Override
+        public Void handleResponse(final HttpResponse response)
+            throws IOException {
+          final int status = response.getStatusLine().getStatusCode();
+          if (status == HttpStatus.SC_NOT_MODIFIED && entry.exists()) {
+            entry.setLastModified(System.currentTimeMillis());
+          } else {
+            checkStatus(url, response);
+            store(url, response, null);
+            writeValidators(url, response);
+          }
+          return null;
+        }
+      });
+    } catch (final IOException e) {
+      if (!entry.exists()) {
+        throw e;
+      }
+      log.warn("Failed to revalidate " + url + ", using cached version ("
+          + e.getMessage() + ")");
+      // Do not try again for every lookup until the TTL has passed
+      entry.setLastModified(System.currentTimeMillis());
+    }
+  }
+
+  private void checkStatus(final String url, final HttpResponse response)
+      throws HttpResponseException {
+    final int status = response.getStatusLine().getStatusCode();
+    if (status >= 300) {
+      throw new HttpResponseException(status, response.getStatusLine()
+          .getReasonPhrase() + ": " + url);
+    }
+  }
+
+  private void store(final String url, final HttpResponse response,
+      final Integrity integrity) throws IOException {
+    final InputStream in = response.getEntity().getContent();
+    try {
+      put(url, in, integrity);
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+  }
+
+  private boolean isVerified(final String url, final Integrity integrity)
+      throws IOException {
+    final File file = verified(url);
+    return file.exists()
+        && integrity.toString().equals(FileUtils.readFileToString(file));
+  }
+
+  private void markVerified(final String url, final Integrity integrity)
+      throws IOException {
+    final File file = verified(url);
+    file.getParentFile().mkdirs();
+    final File temp = File.createTempFile(file.getName(), ".part",
+        file.getParentFile());
+    try {
+      FileUtils.writeStringToFile(temp, integrity.toString());
+      move(temp, file);
+    } finally {
+      temp.delete();
+    }
+  }
+
+  /**
+   * Replaces the target with the source, atomically if the filesystem
+   * supports it.
+   */
+  private static void move(final File source, final File target)
+      throws IOException {
+    try {
+      Files.move(source.toPath(), target.toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (final AtomicMoveNotSupportedException e) {
+      Files.move(source.toPath(), target.toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private boolean isExpired(final File entry) {
+    return this.metadataTtl >= 0
+        && entry.lastModified() + this.metadataTtl <= System
+            .currentTimeMillis();
+  }
+
+  private Properties readValidators(final String url) throws IOException {
+    final Properties validators = new Properties();
+    final File file = validators(url);
+    if (file.exists()) {
+      final InputStream in = new FileInputStream(file);
+      try {
+        validators.load(in);
+      } finally {
+        IOUtils.closeQuietly(in);
+      }
+    }
+    return validators;
+  }
+
+  private void writeValidators(final String url, final HttpResponse response)
+      throws IOException {
+    final Properties validators = new Properties();
+    final Header etag = response.getFirstHeader("ETag");
+    if (etag != null) {
+      validators.setProperty("etag", etag.getValue());
+    }
+    final Header lastModified = response.getFirstHeader("Last-Modified");
+    if (lastModified != null) {
+      validators.setProperty("last-modified", lastModified.getValue());
+    }
+    final File file = validators(url);
+    file.getParentFile().mkdirs();
+    final File temp = File.createTempFile(file.getName(), ".part",
+        file.getParentFile());
+    try {
+      final OutputStream out = new FileOutputStream(temp);
+      try {
+        validators.store(out, url);
+      } finally {
+        IOUtils.closeQuietly(out);
+      }
+      move(temp, file);
+    } finally {
+      temp.delete();
+    }
+  }
+
+  /**
+   * A lock on an url of the cache.
+   */
+  static class CacheLock {
+
+    private final ReentrantLock local;
+
+    private final RandomAccessFile file;
+
+    private final FileLock lock;
+
+    private CacheLock(final ReentrantLock local, final RandomAccessFile file,
+        final FileLock lock) {
+      this.local = local;
+      this.file = file;
+      this.lock = lock;
+    }
+
+    void release() {
+      try {
+        this.lock.release();
+      } catch (final IOException e) {
+        // Released when the file is closed
+      } finally {
+        IOUtils.closeQuietly(this.file);
+        this.local.unlock();
+      }
+    }
+
   }
 
 }
@@ -1,16 +1,14 @@
 package de.matrixweb.smaller.maven.plugin.node;
 
 import java.io.File;
+import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Map;
-import java.util.Map.Entry;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
-import org.apache.http.client.fluent.Request;
-import org.apache.http.client.fluent.Response;
 import org.codehaus.jackson.map.DeserializationConfig.Feature;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.eclipse.jgit.api.CloneCommand;
@@ -21,6 +19,10 @@ import de.matrixweb.smaller.maven.plugin.node.Descriptor.Version;
 
 class PackageInfo {
 
+  private static final String REGISTRY = "http://registry.npmjs.org/";
+
+  private static final String ABBREVIATED_METADATA = "application/vnd.npm.install-v1+json; q=1.0, application/json; q=0.8, */*";
+
   private static final ObjectMapper OM;
   static {
     OM = new ObjectMapper();
@@ -34,12 +36,22 @@ class PackageInfo {
 
   private Descriptor descriptor;
 
+  private Version versionDescriptor;
+
   private final Logger log;
 
   private final NpmCache cache;
 
   private final File tempLocation;
 
+  private String tarball;
+
+  private String shasum;
+
+  private String integrity;
+
+  private boolean locked = false;
+
   static PackageInfo createPackage(final String input, final Logger log,
       final NpmCache cache) throws IOException {
     if (input.startsWith("git:") || input.startsWith("git+")) {
@@ -139,20 +151,13 @@ class PackageInfo {
 
   private static InputStream get(final NpmCache cache, final Logger log,
       final String url, final String message) throws IOException {
-    return get(cache, false, log, url, message);
+    return get(cache, false, log, url, message, null);
   }
 
   private static InputStream get(final NpmCache cache,
       final boolean forceUpdate, final Logger log, final String url,
-      final String message) throws IOException {
-    InputStream in = cache.get(url, forceUpdate);
-    if (in == null) {
-      log.info(message + " " + url);
-      final Response response = Request.Get(url).execute();
-      cache.put(url, response.returnContent().asStream());
-      in = cache.get(url);
-    }
-    return in;
+      final String message, final Integrity integrity) throws IOException {
+    return cache.fetch(url, forceUpdate, log, message, integrity);
   }
 
   private static PackageJson getPackageJson(final File dir) throws IOException {
@@ -176,148 +181,285 @@ class PackageInfo {
     this.version = version;
   }
 
+  static PackageInfo resolve(final String name, final String range,
+      final Logger log, final NpmCache cache) throws IOException {
+    final String exactVersion = SemanticVersion.getExactVersion(range);
+    if (exactVersion != null) {
+      return new PackageInfo(name, exactVersion, null, log, cache);
+    }
+    try {
+      final PackageInfo pkg = new PackageInfo(name, "", null, log, cache);
+      final String version = pkg.getDescriptor().getVersionIndex()
+          .getBestMatch(range);
+      if (version == null) {
+        throw new IOException("No version of " + name + " matches " + range);
+      }
+      pkg.setVersion(version);
+      return pkg;
+    } catch (final ParseException e) {
+      // Try git-version or url
+      return createPackage(range, log, cache);
+    }
+  }
+
+  /**
+   * Creates a package from a previous resolution, e.g. from a lockfile. Such a
+   * package is installed without requesting its descriptor.
+   */
+  static PackageInfo locked(final String name, final String version,
+      final String tarball, final String shasum, final String integrity,
+      final Logger log, final NpmCache cache) {
+    final PackageInfo pkg = new PackageInfo(name, version, null, log, cache);
+    pkg.tarball = tarball;
+    pkg.shasum = shasum;
+    pkg.integrity = integrity;
+    pkg.locked = true;
+    return pkg;
+  }
+
+  String getName() {
+    return this.name;
+  }
+
+  String getVersion() throws IOException {
+    if ("".equals(this.version)) {
+      this.version = getDescriptor().getDistTags().getLatest();
+    }
+    return this.version;
+  }
+
   private Descriptor getDescriptor() throws IOException {
     if (this.descriptor == null) {
-      final InputStream in = get(this.cache, this.log,
-          "http://registry.npmjs.org/" + this.name, "Requesting");
+      this.descriptor = this.cache.getDescriptors().get(this.name);
+    }
+    if (this.descriptor == null) {
+      final InputStream in = this.cache.getMetadata(REGISTRY + this.name,
+          ABBREVIATED_METADATA, this.log);
       try {
-        this.descriptor = OM.readValue(in, Descriptor.class);
+        this.descriptor = DescriptorReader.readDescriptor(in);
       } finally {
         IOUtils.closeQuietly(in);
       }
+      this.cache.getDescriptors().put(this.name, this.descriptor);
     }
     return this.descriptor;
   }
 
-  private Map<String, String> getDependencies() throws IOException {
+  private Version getVersionDescriptor() throws IOException {
+    if (this.versionDescriptor == null) {
+      if (this.descriptor == null && !"".equals(this.version)
+          && !this.cache.getDescriptors().contains(this.name)) {
+        // A known version does not require the whole package document
+        final InputStream in = this.cache.getMetadata(REGISTRY + this.name
+            + '/' + this.version, null, this.log);
+        try {
+          this.versionDescriptor = DescriptorReader.readVersion(in);
+        } catch (final IOException e) {
+          throw new IOException("Version " + this.version + " not found", e);
+        } finally {
+          IOUtils.closeQuietly(in);
+        }
+      } else {
+        this.versionDescriptor = getDescriptor().getVersions().get(
+            getVersion());
+        if (this.versionDescriptor == null) {
+          throw new IOException("Version " + this.version + " not found");
+        }
+      }
+    }
+    return this.versionDescriptor;
+  }
+
+  /**
+   * @return Returns the tarball url or null if this package is not installed
+   *         from the npm registry
+   */
+  String getTarball() throws IOException {
+    if (this.tarball == null && this.tempLocation == null) {
+      this.tarball = getVersionDescriptor().getDist().getTarball();
+    }
+    return this.tarball;
+  }
+
+  /**
+   * @return Returns the sha1 checksum of the tarball if known
+   */
+  String getShasum() throws IOException {
+    if (this.shasum == null && !this.locked && this.tempLocation == null) {
+      this.shasum = getVersionDescriptor().getDist().getShasum();
+    }
+    return this.shasum;
+  }
+
+  /**
+   * @return Returns the subresource integrity string of the tarball if known
+   */
+  String getIntegrity() throws IOException {
+    if (this.integrity == null && !this.locked && this.tempLocation == null) {
+      this.integrity = getVersionDescriptor().getDist().getIntegrity();
+    }
+    return this.integrity;
+  }
+
+  private Integrity getExpectedDigest() throws IOException {
+    return Integrity.create(getIntegrity(), getShasum());
+  }
+
+  Map<String, String> getDependencies() throws IOException {
     if (this.tempLocation != null) {
       return getPackageJson(this.tempLocation).getDependencies();
     }
-    return getDescriptor().getVersions().get(this.version).getDependencies();
+    return getVersionDescriptor().getDependencies();
   }
 
-  void install(final File root, final File installDir,
+  void install(final File installDir,
       final boolean deleteTestAndExampleFolders) throws IOException {
-    if ("".equals(this.version)) {
-      this.version = getDescriptor().getDistTags().getLatest();
-    }
-    final File pkgDir = new File(installDir, this.name);
+    final Installer installer = new Installer(this.log, this.cache, 1,
+        new EntryFilter(null,
+            deleteTestAndExampleFolders ? EntryFilter.TEST_AND_EXAMPLE_FOLDERS
+                : null));
     try {
-      installSources(pkgDir);
-      if (deleteTestAndExampleFolders) {
-        FileUtils.deleteDirectory(new File(pkgDir, "test"));
-        FileUtils.deleteDirectory(new File(pkgDir, "tests"));
-        FileUtils.deleteDirectory(new File(pkgDir, "example"));
-        FileUtils.deleteDirectory(new File(pkgDir, "examples"));
-      }
-      installDependencies(root, getDependencies(), pkgDir,
-          deleteTestAndExampleFolders);
+      installer.install(this, installDir);
     } finally {
-      if (this.tempLocation != null) {
-        FileUtils.deleteDirectory(this.tempLocation);
-      }
+      installer.shutdown();
+    }
+  }
+
+  File installSources(final File installDir, final PackageStore store,
+      final EntryFilter filter) throws IOException {
+    final File pkgDir = new File(installDir, this.name);
+    extractSources(pkgDir, store, filter);
+    return pkgDir;
+  }
+
+  void dispose() throws IOException {
+    if (this.tempLocation != null) {
+      FileUtils.deleteDirectory(this.tempLocation);
     }
   }
 
-  private void installSources(final File pkgDir) throws IOException {
+  private void extractSources(final File pkgDir, final PackageStore store,
+      final EntryFilter filter) throws IOException {
     if (this.tempLocation != null) {
-      FileUtils.copyDirectory(this.tempLocation, pkgDir);
+      final String root = this.tempLocation.getPath() + File.separator;
+      FileUtils.copyDirectory(this.tempLocation, pkgDir, new FileFilter() {
+        @Override
+        public boolean accept(final File file) {
+          return file.isDirectory()
+              || filter.accept(file.getPath().substring(root.length())
+                  .replace(File.separatorChar, '/'));
+        }
+      });
+    } else if (getShasum() != null) {
+      // Packages extracted with other filters are stored separately
+      final String key = filter.getFingerprint().length() > 0 ? getShasum()
+          + '-' + filter.getFingerprint() : getShasum();
+      File stored = store.get(key);
+      if (stored == null) {
+        final File temp = store.createTemp(key);
+        try {
+          downloadAndExtract(getTarball(), temp, filter);
+        } catch (final IOException e) {
+          FileUtils.deleteDirectory(temp);
+          throw e;
+        }
+        stored = store.add(key, temp);
+      } else {
+        this.log.debug("Found " + this.name + '@' + this.version + " in store");
+      }
+      store.install(stored, pkgDir);
     } else {
-      final Version versionDescriptor = getDescriptor().getVersions().get(
-          this.version);
-      if (versionDescriptor == null) {
-        throw new IOException("Version " + this.version + " not found");
+      // The dependencies are installed into pkgDir/node_modules at the same
+      // time, so the package is extracted next to it and then moved in
+      pkgDir.getParentFile().mkdirs();
+      final File temp = File.createTempFile('.' + pkgDir.getName(), ".part",
+          pkgDir.getParentFile());
+      temp.delete();
+      try {
+        downloadAndExtract(getTarball(), temp, filter);
+        moveContents(temp, pkgDir);
+      } finally {
+        FileUtils.deleteDirectory(temp);
       }
-      downloadAndExtract(versionDescriptor, pkgDir, true, false);
     }
   }
 
-  private void downloadAndExtract(final Version versionDescriptor,
-      final File pkgDir, final boolean retry, final boolean forceUpdate)
+  /**
+   * Moves all files of the source folder into the target folder. Existing
+   * folders are merged, existing files replaced.
+   */
+  private static void moveContents(final File source, final File target)
       throws IOException {
+    target.mkdirs();
+    final File[] files = source.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (final File file : files) {
+      final File dest = new File(target, file.getName());
+      if (file.isDirectory() && dest.isDirectory()) {
+        moveContents(file, dest);
+      } else {
+        FileUtils.deleteQuietly(dest);
+        if (!file.renameTo(dest)) {
+          if (file.isDirectory()) {
+            FileUtils.copyDirectory(file, dest);
+          } else {
+            FileUtils.copyFile(file, dest);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @param pkgDir
+   *          A folder used by this extraction only, it is deleted before a
+   *          retry
+   */
+  private void downloadAndExtract(final String tarball, final File pkgDir,
+      final EntryFilter filter) throws IOException {
+    // A verified tarball is not downloaded again if it fails to extract
+    final Integrity integrity = getExpectedDigest();
+    downloadAndExtract(tarball, pkgDir, filter, integrity, integrity == null,
+        false);
+  }
+
+  private void downloadAndExtract(final String tarball, final File pkgDir,
+      final EntryFilter filter, final Integrity integrity, final boolean retry,
+      final boolean forceUpdate) throws IOException {
     try {
-      final InputStream in = getTarball(versionDescriptor, forceUpdate);
+      final InputStream in = getTarball(tarball, integrity, forceUpdate);
       try {
+        // The retry decompresses into a temporary file first, so a corrupt
+        // gzip stream fails before any file is written. A broken tar still
+        // leaves partial files, which the caller removes.
         Extractor.uncompress(this.name, this.version, this.log, in, pkgDir,
-            forceUpdate);
+            forceUpdate, !forceUpdate, filter);
       } finally {
         IOUtils.closeQuietly(in);
       }
     } catch (final IOException e) {
       if (retry) {
         this.log.info("Retry with redownloading and extracting");
-        downloadAndExtract(versionDescriptor, pkgDir, false, true);
+        FileUtils.deleteDirectory(pkgDir);
+        downloadAndExtract(tarball, pkgDir, filter, integrity, false, true);
       } else {
         throw e;
       }
     }
   }
 
-  private InputStream getTarball(final Version version,
-      final boolean forceUpdate) throws IOException {
+  private InputStream getTarball(final String tarball,
+      final Integrity integrity, final boolean forceUpdate) throws IOException {
     final File local = new File(System.getProperty("user.home"), ".npm/"
         + this.name + "/" + this.version + "/package.tgz");
     this.log.debug("Check local .npm for " + local);
-    if (local.exists()) {
+    if (local.exists() && (integrity == null || integrity.matches(local))) {
       return new FileInputStream(local);
     }
-    return get(this.cache, this.log, version.getDist().getTarball(),
-        "Downloading");
-  }
-
-  private void installDependencies(final File root,
-      final Map<String, String> dependencies, final File pkgDir,
-      final boolean deleteTestAndExampleFolders) throws IOException {
-    for (final Entry<String, String> dependency : dependencies.entrySet()) {
-      final String pkgName = dependency.getKey();
-      final String requiredVersion = dependency.getValue();
-      this.log.debug("Looking for " + pkgName + '@' + requiredVersion
-          + " in parent folders of " + pkgDir);
-      final String foundVersion = findInstalledVersion(root, pkgDir, pkgName);
-      try {
-        if (foundVersion == null || !satisfies(requiredVersion, foundVersion)) {
-          PackageInfo depPkg;
-          try {
-            depPkg = new PackageInfo(pkgName, "", null, this.log, this.cache);
-            depPkg.setVersion(SemanticVersion.getBestMatch(depPkg
-                .getDescriptor().getVersions().keySet(), requiredVersion));
-          } catch (final ParseException e) {
-            // Try git-version or url
-            depPkg = createPackage(requiredVersion, this.log, this.cache);
-          }
-          depPkg.install(root, new File(pkgDir, "node_modules"),
-              deleteTestAndExampleFolders);
-        }
-      } catch (IOException e) {
-        throw new IOException("Failed to install dependecy for " + pkgName + " version " + requiredVersion, e);
-      } catch (ParseException e) {
-        throw new IOException("Failed to find dependency " + pkgName + " version " + requiredVersion, e);
-      }
-    }
-  }
-
-  private boolean satisfies(final String requiredVersion,
-      final String foundVersion) {
-    final Range range = new Range(requiredVersion);
-    return range.satisfies(ParsedVersion.parse(foundVersion));
-  }
-
-  private String findInstalledVersion(final File root, final File dir,
-      final String pkgName) throws IOException {
-    String version = null;
-
-    final File nodeModulesDir = new File(dir, "node_modules");
-    final File pkgDir = new File(nodeModulesDir, pkgName);
-    if (pkgDir.exists()) {
-      this.log.debug("  searching " + pkgDir + "...");
-      final PackageJson json = getPackageJson(pkgDir);
-      version = json.getVersion();
-      this.log.debug("  found version " + version);
-    } else if (!dir.getParentFile().equals(root)) {
-      version = findInstalledVersion(root, dir.getParentFile(), pkgName);
-    }
-
-    return version;
+    return get(this.cache, forceUpdate, this.log, tarball, "Downloading",
+        integrity);
   }
 
 }
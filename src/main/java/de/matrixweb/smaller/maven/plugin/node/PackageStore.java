@@ -0,0 +1,175 @@
+package de.matrixweb.smaller.maven.plugin.node;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Extracted packages addressed by the checksum of their tarball. A package is
+ * extracted only once into the store and then installed by hard-linking its
+ * files. If the filesystem does not support hard links the files are copied.
+ * Stored files are made read-only, since an installed file shares its content
+ * with the store and every other installation of the package.
+ * 
+ * @author markusw
+ */
+class PackageStore {
+
+  private final File base;
+
+  private final Logger log;
+
+  private volatile boolean hardLinks = true;
+
+  PackageStore(final File base, final Logger log) {
+    this.base = base;
+    this.log = log;
+    this.base.mkdirs();
+  }
+
+  /**
+   * @param checksum
+   *          The checksum of the package tarball
+   * @return Returns the extracted package or null if it is not in the store
+   */
+  File get(final String checksum) {
+    final File dir = new File(this.base, checksum);
+    return dir.isDirectory() ? dir : null;
+  }
+
+  /**
+   * @param checksum
+   *          The checksum of the package tarball
+   * @return Returns an empty folder to extract the package into
+   */
+  File createTemp(final String checksum) throws IOException {
+    final File temp = File.createTempFile(checksum, ".part", this.base);
+    temp.delete();
+    temp.mkdirs();
+    return temp;
+  }
+
+  /**
+   * Moves an extracted package into the store and makes its files read-only.
+   * If another thread or process stored the same package in the meantime,
+   * that one is kept.
+   * 
+   * @param checksum
+   *          The checksum of the package tarball
+   * @param temp
+   *          The folder the package was extracted into
+   * @return Returns the stored package
+   */
+  File add(final String checksum, final File temp) throws IOException {
+    final File dir = new File(this.base, checksum);
+    for (final File file : FileUtils.listFiles(temp, null, true)) {
+      file.setWritable(false, false);
+    }
+    if (!temp.renameTo(dir)) {
+      delete(temp);
+      if (!dir.isDirectory()) {
+        throw new IOException("Failed to store package " + dir);
+      }
+    }
+    return dir;
+  }
+
+  /**
+   * Installs a stored package into the given folder.
+   * 
+   * @param stored
+   *          The stored package
+   * @param target
+   *          The folder to install into
+   */
+  void install(final File stored, final File target) throws IOException {
+    final Path from = stored.toPath();
+    final Path to = target.toPath();
+    Files.walkFileTree(from, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(final Path dir,
+          final BasicFileAttributes attrs) throws IOException {
+        Files.createDirectories(to.resolve(from.relativize(dir)));
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(final Path file,
+          final BasicFileAttributes attrs) throws IOException {
+        final Path dest = to.resolve(from.relativize(file));
+        delete(dest.toFile());
+        if (!link(file, dest)) {
+          // A copy is not shared with the store
+          Files.copy(file, dest, StandardCopyOption.COPY_ATTRIBUTES,
+              StandardCopyOption.REPLACE_EXISTING);
+          dest.toFile().setWritable(true);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  private boolean link(final Path file, final Path dest) {
+    if (this.hardLinks) {
+      try {
+        Files.createLink(dest, file);
+        return true;
+      } catch (final UnsupportedOperationException e) {
+        disableHardLinks(e);
+      } catch (final FileSystemException e) {
+        // Subclasses like AccessDeniedException are caused by the single file,
+        // a plain one by the filesystem, e.g. a link across filesystems
+        if (e.getClass() == FileSystemException.class) {
+          disableHardLinks(e);
+        } else {
+          this.log.debug("Copying " + dest + " (" + e + ")");
+        }
+      } catch (final IOException e) {
+        this.log.debug("Copying " + dest + " (" + e + ")");
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Deletes the given file or folder. Installed files could be read-only
+   * links into the store, which are not deletable on Windows, so the read-only
+   * flag is cleared if a file could not be deleted.
+   * 
+   * @param file
+   *          The file or folder to delete
+   */
+  static void delete(final File file) throws IOException {
+    if (file.isDirectory() && !FileUtils.isSymlink(file)) {
+      final File[] files = file.listFiles();
+      if (files != null) {
+        for (final File child : files) {
+          delete(child);
+        }
+      }
+    }
+    if (!file.delete() && file.exists()) {
+      file.setWritable(true);
+      if (!file.delete()) {
+        throw new IOException("Failed to delete " + file);
+      }
+    }
+  }
+
+  private void disableHardLinks(final Exception e) {
+    if (this.hardLinks) {
+      this.hardLinks = false;
+      this.log.info("Hard links are not supported, copying packages instead ("
+          + e + ")");
+    }
+  }
+
+}
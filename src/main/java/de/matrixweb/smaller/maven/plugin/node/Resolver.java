@@ -0,0 +1,315 @@
+package de.matrixweb.smaller.maven.plugin.node;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Builds the complete dependency tree of a package in memory, before anything
+ * is written to disk. Each (name, range) pair is resolved only once per build.
+ * 
+ * @author markusw
+ */
+class Resolver {
+
+  private final Logger log;
+
+  private final NpmCache cache;
+
+  private final WorkerPool workers;
+
+  private final ConcurrentMap<String, FutureTask<PackageInfo>> resolved = new ConcurrentHashMap<String, FutureTask<PackageInfo>>();
+
+  private final List<PackageInfo> packages = new ArrayList<PackageInfo>();
+
+  Resolver(final Logger log, final NpmCache cache, final WorkerPool workers) {
+    this.log = log;
+    this.cache = cache;
+    this.workers = workers;
+  }
+
+  /**
+   * Resolves the dependency tree of the given package. First every (name,
+   * range) pair reachable from the package is resolved, level by level and
+   * concurrently within a level. Then, for each range, the version of that
+   * name satisfying the most requested ranges is preferred. Finally the tree
+   * is laid out breadth first in declaration order, placing each package as
+   * high as node.js' lookup rules allow. Packages are hoisted at most up to
+   * the node_modules folder of the top-level package, the trees of different
+   * top-level packages do not share any packages. The tree is independent of
+   * the number of threads.
+   * 
+   * @param pkg
+   *          The top-level package
+   * @return Returns the root of the resolved tree
+   */
+  Node resolve(final PackageInfo pkg) throws IOException {
+    synchronized (this.packages) {
+      this.packages.add(pkg);
+    }
+    final Map<String, Map<String, PackageInfo>> graph = resolveGraph(pkg);
+    prefer(graph);
+    return layout(pkg, graph);
+  }
+
+  /**
+   * @return Returns the resolved package for each name and range, with all
+   *         ranges resolving to the same version sharing one package
+   */
+  private Map<String, Map<String, PackageInfo>> resolveGraph(
+      final PackageInfo pkg) throws IOException {
+    final Map<String, Map<String, PackageInfo>> graph = new TreeMap<String, Map<String, PackageInfo>>();
+    final Map<String, PackageInfo> versions = new HashMap<String, PackageInfo>();
+    versions.put(pkg.getName() + '@' + pkg.getVersion(), pkg);
+    List<PackageInfo> level = new ArrayList<PackageInfo>();
+    level.add(pkg);
+    while (!level.isEmpty()) {
+      final List<Callable<Map<String, PackageInfo>>> tasks = new ArrayList<Callable<Map<String, PackageInfo>>>();
+      for (final PackageInfo current : level) {
+        tasks.add(new Callable<Map<String, PackageInfo>>() {
+          @Override
+          public Map<String, PackageInfo> call() throws IOException {
+            return resolveDependencies(current);
+          }
+        });
+      }
+      final List<Map<String, PackageInfo>> dependencies = this.workers
+          .invokeAll(tasks);
+
+      final List<PackageInfo> next = new ArrayList<PackageInfo>();
+      for (int i = 0; i < level.size(); i++) {
+        final Map<String, String> ranges = level.get(i).getDependencies();
+        for (final Entry<String, PackageInfo> dependency : dependencies.get(i)
+            .entrySet()) {
+          final String name = dependency.getKey();
+          final String key = name + '@' + dependency.getValue().getVersion();
+          PackageInfo resolved = versions.get(key);
+          if (resolved == null) {
+            resolved = dependency.getValue();
+            versions.put(key, resolved);
+            next.add(resolved);
+          }
+          Map<String, PackageInfo> byRange = graph.get(name);
+          if (byRange == null) {
+            byRange = new LinkedHashMap<String, PackageInfo>();
+            graph.put(name, byRange);
+          }
+          byRange.put(ranges.get(name), resolved);
+        }
+      }
+      level = next;
+    }
+    return graph;
+  }
+
+  private Map<String, PackageInfo> resolveDependencies(final PackageInfo pkg)
+      throws IOException {
+    final Map<String, PackageInfo> dependencies = new TreeMap<String, PackageInfo>();
+    for (final Entry<String, String> dependency : pkg.getDependencies()
+        .entrySet()) {
+      dependencies.put(dependency.getKey(),
+          resolve(dependency.getKey(), dependency.getValue()));
+    }
+    return dependencies;
+  }
+
+  /**
+   * Replaces the best match of each range by the resolved version of the same
+   * name which satisfies the range and the most other ranges, so dependents
+   * can share one copy.
+   */
+  private void prefer(final Map<String, Map<String, PackageInfo>> graph)
+      throws IOException {
+    for (final Map<String, PackageInfo> byRange : graph.values()) {
+      final Set<PackageInfo> candidates = new LinkedHashSet<PackageInfo>(
+          byRange.values());
+      if (candidates.size() < 2) {
+        continue;
+      }
+      final Map<PackageInfo, Integer> counts = new HashMap<PackageInfo, Integer>();
+      for (final PackageInfo candidate : candidates) {
+        int count = 0;
+        for (final String range : byRange.keySet()) {
+          if (satisfies(range, candidate)) {
+            count++;
+          }
+        }
+        counts.put(candidate, count);
+      }
+      for (final Entry<String, PackageInfo> entry : byRange.entrySet()) {
+        PackageInfo best = entry.getValue();
+        for (final PackageInfo candidate : candidates) {
+          final int diff = counts.get(candidate) - counts.get(best);
+          if (satisfies(entry.getKey(), candidate)
+              && (diff > 0 || diff == 0 && isNewer(candidate, best))) {
+            best = candidate;
+          }
+        }
+        entry.setValue(best);
+      }
+    }
+  }
+
+  private Node layout(final PackageInfo pkg,
+      final Map<String, Map<String, PackageInfo>> graph) throws IOException {
+    final Node root = new Node(null, pkg, null);
+    // The dependencies of all nodes which already got their dependencies
+    // placed
+    final Map<Node, Map<String, String>> processed = new HashMap<Node, Map<String, String>>();
+    final LinkedList<Node> queue = new LinkedList<Node>();
+    queue.add(root);
+    while (!queue.isEmpty()) {
+      final Node node = queue.removeFirst();
+      final Map<String, String> dependencies = new TreeMap<String, String>(
+          node.getPackage().getDependencies());
+      for (final Entry<String, String> dependency : dependencies.entrySet()) {
+        final String name = dependency.getKey();
+        final Node placed = place(node, name, dependency.getValue(), graph
+            .get(name).get(dependency.getValue()), processed);
+        if (placed != null) {
+          queue.add(placed);
+        }
+      }
+      processed.put(node, dependencies);
+    }
+    return root;
+  }
+
+  /**
+   * Places the package at the highest ancestor of the given node where
+   * node.js would find it and where it does not hide another version from a
+   * package already placed below.
+   * 
+   * @return Returns the new node or null if an already placed package
+   *         satisfies the range
+   */
+  private Node place(final Node node, final String name, final String range,
+      final PackageInfo pkg, final Map<Node, Map<String, String>> processed)
+      throws IOException {
+    final List<Node> candidates = new ArrayList<Node>();
+    Node current = node;
+    while (current != null) {
+      final Node existing = current.getChildren().get(name);
+      if (existing != null) {
+        if (existing.getPackage() == pkg
+            || satisfies(range, existing.getPackage())) {
+          return null;
+        }
+        break;
+      }
+      candidates.add(current);
+      current = current.getParent();
+    }
+    for (int i = candidates.size() - 1; i > 0; i--) {
+      final Node candidate = candidates.get(i);
+      if (!hides(candidate.getChildren().values(), name, pkg, processed)) {
+        return candidate.addChild(range, pkg);
+      }
+    }
+    return node.addChild(range, pkg);
+  }
+
+  private boolean hides(final Collection<Node> nodes, final String name,
+      final PackageInfo pkg, final Map<Node, Map<String, String>> processed)
+      throws IOException {
+    for (final Node node : nodes) {
+      if (node.getChildren().containsKey(name)) {
+        // This subtree uses its own copy
+        continue;
+      }
+      final Map<String, String> dependencies = processed.get(node);
+      if (dependencies != null && dependencies.containsKey(name)
+          && node.find(name).getPackage() != pkg
+          && !satisfies(dependencies.get(name), pkg)) {
+        return true;
+      }
+      if (hides(node.getChildren().values(), name, pkg, processed)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private PackageInfo resolve(final String name, final String range)
+      throws IOException {
+    final String key = name + '@' + range;
+    FutureTask<PackageInfo> task = new FutureTask<PackageInfo>(
+        new Callable<PackageInfo>() {
+          @Override
+          public PackageInfo call() throws IOException {
+            Resolver.this.log.debug("Resolving " + key);
+            final PackageInfo pkg = PackageInfo.resolve(name, range,
+                Resolver.this.log, Resolver.this.cache);
+            synchronized (Resolver.this.packages) {
+              Resolver.this.packages.add(pkg);
+            }
+            return pkg;
+          }
+        });
+    final FutureTask<PackageInfo> existing = this.resolved.putIfAbsent(key,
+        task);
+    if (existing != null) {
+      task = existing;
+    } else {
+      task.run();
+    }
+    try {
+      return task.get();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while resolving " + key, e);
+    } catch (final ExecutionException e) {
+      if (e.getCause() instanceof ParseException) {
+        throw new IOException("Failed to find dependency " + name + " version "
+            + range, e.getCause());
+      }
+      throw new IOException("Failed to resolve dependency " + name
+          + " version " + range, e.getCause());
+    }
+  }
+
+  private boolean satisfies(final String range, final PackageInfo pkg)
+      throws IOException {
+    try {
+      return Range.compile(range).satisfies(
+          ParsedVersion.parse(pkg.getVersion()));
+    } catch (final ParseException e) {
+      return false;
+    }
+  }
+
+  private boolean isNewer(final PackageInfo pkg, final PackageInfo other)
+      throws IOException {
+    final ParsedVersion version = ParsedVersion.parse(pkg.getVersion());
+    final ParsedVersion otherVersion = ParsedVersion.parse(other.getVersion());
+    return version != null && otherVersion != null
+        && version.compareTo(otherVersion) > 0;
+  }
+
+  /**
+   * Removes all temporary files of the resolved packages.
+   */
+  void dispose() throws IOException {
+    synchronized (this.packages) {
+      for (final PackageInfo pkg : this.packages) {
+        pkg.dispose();
+      }
+      this.packages.clear();
+    }
+  }
+
+}
@@ -2,103 +2,345 @@ package de.matrixweb.smaller.maven.plugin.node;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.TreeMap;
-import java.util.regex.Matcher;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
 
 class SemanticVersion {
 
+  private static final Pattern EXACT = Pattern
+      .compile("=?v?[0-9]+\\.[0-9]+\\.[0-9]+(?:[-+][-+.a-zA-Z0-9]*)?");
+
+  /**
+   * @param range
+   *          The version range
+   * @return Returns the version if the given range matches exactly one
+   *         version, otherwise null
+   */
+  static String getExactVersion(final String range) {
+    final String str = range.trim();
+    if (EXACT.matcher(str).matches()) {
+      return str.replaceFirst("^=?v?", "");
+    }
+    return null;
+  }
+
   static String getBestMatch(final Collection<String> versions, final String str)
       throws IOException {
-    final List<ParsedVersion> pkgVersions = new ArrayList<ParsedVersion>();
-    for (final String dv : versions) {
-      pkgVersions.add(ParsedVersion.parse(dv));
+    return new Versions(versions).getBestMatch(str);
+  }
+
+}
+
+/**
+ * The versions of a package sorted once, so the best match of a range is
+ * found by binary search. Matches are cached per range for the lifetime of
+ * the instance.
+ *
+ * @author markusw
+ */
+class Versions {
+
+  private static final String NONE = new String();
+
+  private final ParsedVersion[] versions;
+
+  private final ConcurrentMap<String, String> matches = new ConcurrentHashMap<String, String>();
+
+  Versions(final Collection<String> versions) {
+    final List<ParsedVersion> parsed = new ArrayList<ParsedVersion>(
+        versions.size());
+    for (final String version : versions) {
+      final ParsedVersion pv = ParsedVersion.parse(version);
+      if (pv != null) {
+        parsed.add(pv);
+      }
     }
-    Collections.sort(pkgVersions, Collections.reverseOrder());
+    this.versions = parsed.toArray(new ParsedVersion[parsed.size()]);
+    Arrays.sort(this.versions);
+  }
 
-    String version = str.trim();
-    if ("".equals(str)) {
-      version = pkgVersions.get(0).toString();
+  /**
+   * @param range
+   *          The version range, an empty range matches the highest version
+   * @return Returns the highest version satisfying the range as given in the
+   *         version list or null if there is none
+   */
+  String getBestMatch(final String range) {
+    String match = this.matches.get(range);
+    if (match == null) {
+      match = find(range.trim());
+      this.matches.putIfAbsent(range, match != null ? match : NONE);
     }
-    final Range range = new Range(version);
+    return match != NONE ? match : null;
+  }
 
-    ParsedVersion match = null;
-    final Iterator<ParsedVersion> it = pkgVersions.iterator();
-    while (match == null && it.hasNext()) {
-      final ParsedVersion pkgVer = it.next();
-      if (range.satisfies(pkgVer)) {
-        match = pkgVer;
+  private String find(final String str) {
+    if (this.versions.length == 0) {
+      return null;
+    }
+    if ("".equals(str)) {
+      for (int i = this.versions.length - 1; i >= 0; i--) {
+        if (!this.versions[i].isPrerelease()) {
+          return this.versions[i].getSource();
+        }
       }
+      return this.versions[this.versions.length - 1].getSource();
     }
+    final Range range = Range.compile(str);
+    for (int i = upperIndex(range.getMax()); i >= 0; i--) {
+      final ParsedVersion version = this.versions[i];
+      if (range.satisfies(version)) {
+        return version.getSource();
+      }
+      if (range.isBelow(version)) {
+        break;
+      }
+    }
+    return null;
+  }
 
-    return match.toString();
+  /**
+   * @return Returns the index of the highest version not greater than max
+   */
+  private int upperIndex(final ParsedVersion max) {
+    if (max == null) {
+      return this.versions.length - 1;
+    }
+    int low = 0;
+    int high = this.versions.length - 1;
+    while (low <= high) {
+      final int mid = low + high >>> 1;
+      if (this.versions[mid].compareTo(max) <= 0) {
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return high;
   }
 
 }
 
 class ParsedVersion implements Comparable<ParsedVersion> {
 
-  private static final String NUM = "0|[1-9][0-9]*";
-  private static final String NONNUM = "[0-9]*[-a-zA-Z][-a-zA-Z0-9]*";
-  private static final String MAIN = "(" + NUM + ")(?:\\.(" + NUM
-      + "))?(?:\\.(" + NUM + "))?";
-  private static final String PREREL = "(?:-((?:" + NUM + "|" + NONNUM
-      + ")(?:\\.(?:" + NUM + "|" + NONNUM + "))*))";
-  private static final String BUILD = "(?:\\+([-a-zA-Z0-9]+(?:\\.[-a-zA-Z0-9]+)*))";
-  private static final Pattern FULL = Pattern.compile("v?" + MAIN + PREREL
-      + "?" + BUILD + "?");
-
+  private final String source;
   private int major = 0;
   private int minor = 0;
   private int patch = 0;
   private String pre = null;
   private String build = null;
 
+  private ParsedVersion(final String source) {
+    this.source = source;
+  }
+
+  private ParsedVersion(final int major, final int minor, final int patch) {
+    this(null);
+    this.major = major;
+    this.minor = minor;
+    this.patch = patch;
+  }
+
+  /**
+   * Parses <code>v?MAJOR(.MINOR(.PATCH)?)?(-PRERELEASE)?(+BUILD)?</code>
+   * without regular expressions.
+   *
+   * @return Returns the version or null if the string is not a valid version
+   */
   static ParsedVersion parse(final String str) {
-    final Matcher matcher = FULL.matcher(str);
-    if (matcher.matches()) {
-      final ParsedVersion v = new ParsedVersion();
-      if (matcher.groupCount() > 0) {
-        v.major = Integer.parseInt(matcher.group(1));
+    if (str == null) {
+      return null;
+    }
+    final int len = str.length();
+    int i = 0;
+    if (i < len && str.charAt(i) == 'v') {
+      i++;
+    }
+    final ParsedVersion v = new ParsedVersion(str);
+    int end = numberEnd(str, i);
+    if (end < 0) {
+      return null;
+    }
+    v.major = Integer.parseInt(str.substring(i, end));
+    i = end;
+    if (i < len && str.charAt(i) == '.') {
+      end = numberEnd(str, i + 1);
+      if (end < 0) {
+        return null;
       }
-      if (matcher.groupCount() > 1 && matcher.group(2) != null) {
-        v.minor = Integer.parseInt(matcher.group(2));
+      v.minor = Integer.parseInt(str.substring(i + 1, end));
+      i = end;
+      if (i < len && str.charAt(i) == '.') {
+        end = numberEnd(str, i + 1);
+        if (end < 0) {
+          return null;
+        }
+        v.patch = Integer.parseInt(str.substring(i + 1, end));
+        i = end;
+      }
+    }
+    if (i < len && str.charAt(i) == '-') {
+      end = identifiersEnd(str, i + 1, true);
+      if (end < 0) {
+        return null;
       }
-      if (matcher.groupCount() > 2 && matcher.group(3) != null) {
-        v.patch = Integer.parseInt(matcher.group(3));
+      v.pre = str.substring(i + 1, end);
+      i = end;
+    }
+    if (i < len && str.charAt(i) == '+') {
+      end = identifiersEnd(str, i + 1, false);
+      if (end < 0) {
+        return null;
+      }
+      v.build = str.substring(i + 1, end);
+      i = end;
+    }
+    return i == len ? v : null;
+  }
+
+  /**
+   * @return Returns the end of the number without leading zeros starting at
+   *         the given index or -1
+   */
+  private static int numberEnd(final String str, final int start) {
+    int i = start;
+    while (i < str.length() && isDigit(str.charAt(i))) {
+      i++;
+    }
+    // At most 9 digits to fit into an int
+    if (i == start || i - start > 9 || i - start > 1 && str.charAt(start) == '0') {
+      return -1;
+    }
+    return i;
+  }
+
+  /**
+   * @return Returns the end of the dot separated identifiers starting at the
+   *         given index or -1
+   */
+  private static int identifiersEnd(final String str, final int start,
+      final boolean noLeadingZeros) {
+    int i = start;
+    while (true) {
+      final int identifier = i;
+      boolean numeric = true;
+      while (i < str.length() && isIdentifierChar(str.charAt(i))) {
+        numeric &= isDigit(str.charAt(i));
+        i++;
       }
-      if (matcher.groupCount() > 3) {
-        v.pre = matcher.group(4);
+      if (i == identifier || noLeadingZeros && numeric && i - identifier > 1
+          && str.charAt(identifier) == '0') {
+        return -1;
       }
-      if (matcher.groupCount() > 4) {
-        v.build = matcher.group(5);
+      if (i < str.length() && str.charAt(i) == '.') {
+        i++;
+      } else {
+        return i;
       }
-      return v;
     }
-    return null;
+  }
+
+  private static boolean isDigit(final char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean isIdentifierChar(final char c) {
+    return isDigit(c) || c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z'
+        || c == '-';
+  }
+
+  static ParsedVersion of(final int major, final int minor, final int patch) {
+    return new ParsedVersion(major, minor, patch);
   }
 
   /**
+   * @return Returns the string this version was parsed from
+   */
+  String getSource() {
+    return this.source != null ? this.source : toString();
+  }
+
+  boolean isPrerelease() {
+    return this.pre != null;
+  }
+
+  boolean hasSameTuple(final ParsedVersion o) {
+    return this.major == o.major && this.minor == o.minor
+        && this.patch == o.patch;
+  }
+
+  /**
+   * Orders by major, minor and patch version. A pre-release is lower than its
+   * release, the build metadata is ignored.
+   *
    * @see java.lang.Comparable#compareTo(java.lang.Object)
    */
   @Override
   public int compareTo(final ParsedVersion o) {
-    if (this.major == o.major) {
-      if (this.minor == o.minor) {
-        if (this.patch == o.patch) {
-          return 0;
-        }
-        return this.patch - o.patch;
+    if (this.major != o.major) {
+      return this.major < o.major ? -1 : 1;
+    }
+    if (this.minor != o.minor) {
+      return this.minor < o.minor ? -1 : 1;
+    }
+    if (this.patch != o.patch) {
+      return this.patch < o.patch ? -1 : 1;
+    }
+    if (this.pre == null || o.pre == null) {
+      return this.pre == null ? o.pre == null ? 0 : 1 : -1;
+    }
+    return comparePrerelease(this.pre, o.pre);
+  }
+
+  private static int comparePrerelease(final String a, final String b) {
+    int i = 0;
+    int j = 0;
+    while (i < a.length() && j < b.length()) {
+      int ie = a.indexOf('.', i);
+      ie = ie < 0 ? a.length() : ie;
+      int je = b.indexOf('.', j);
+      je = je < 0 ? b.length() : je;
+      final int result = compareIdentifier(a, i, ie, b, j, je);
+      if (result != 0) {
+        return result;
+      }
+      i = ie + 1;
+      j = je + 1;
+    }
+    return i < a.length() ? 1 : j < b.length() ? -1 : 0;
+  }
+
+  private static int compareIdentifier(final String a, final int as,
+      final int ae, final String b, final int bs, final int be) {
+    final boolean an = isNumeric(a, as, ae);
+    final boolean bn = isNumeric(b, bs, be);
+    if (an && bn && ae - as != be - bs) {
+      // Numeric identifiers have no leading zeros
+      return ae - as < be - bs ? -1 : 1;
+    }
+    if (an != bn) {
+      return an ? -1 : 1;
+    }
+    for (int i = as, j = bs; i < ae && j < be; i++, j++) {
+      if (a.charAt(i) != b.charAt(j)) {
+        return a.charAt(i) < b.charAt(j) ? -1 : 1;
+      }
+    }
+    return ae - as - (be - bs);
+  }
+
+  private static boolean isNumeric(final String str, final int start,
+      final int end) {
+    for (int i = start; i < end; i++) {
+      if (!isDigit(str.charAt(i))) {
+        return false;
       }
-      return this.minor - o.minor;
     }
-    return this.major - o.major;
+    return true;
   }
 
   @Override
@@ -122,146 +364,215 @@ class ParseException extends RuntimeException {
 
 }
 
+/**
+ * A version range compiled into a single interval. Pre-release versions only
+ * satisfy a range if one of its bounds is a pre-release of the same version.
+ *
+ * @author markusw
+ */
 class Range {
 
-  private enum Op {
-    LT("<"), LE("<="), EQ("="), GE(">="), GT(">");
+  private static final int CACHE_SIZE = 10000;
+
+  private static final ConcurrentMap<String, Range> CACHE = new ConcurrentHashMap<String, Range>();
+
+  private ParsedVersion min;
+
+  private boolean minInclusive;
+
+  private ParsedVersion max;
 
-    private final String op;
+  private boolean maxInclusive;
 
-    private Op(final String op) {
-      this.op = op;
+  /**
+   * @return Returns the compiled range for the given string, ranges are
+   *         shared across the build
+   */
+  static Range compile(final String str) {
+    Range range = CACHE.get(str);
+    if (range == null) {
+      range = new Range(str);
+      if (CACHE.size() >= CACHE_SIZE) {
+        CACHE.clear();
+      }
+      CACHE.put(str, range);
     }
+    return range;
+  }
 
-    static Op lookup(final String str) {
-      if (str == null) {
-        return EQ;
+  Range(final String str) {
+    final int len = str.length();
+    int i = 0;
+    while (true) {
+      while (i < len && Character.isWhitespace(str.charAt(i))) {
+        i++;
       }
-      for (final Op op : values()) {
-        if (op.op.equals(str)) {
-          return op;
-        }
+      if (i == len) {
+        break;
       }
-      throw new IllegalArgumentException(str);
-    }
-
-    boolean compare(final ParsedVersion v1, final ParsedVersion v2) {
-      switch (this) {
-      case LT:
-        return v1.compareTo(v2) < 0;
-      case LE:
-        return v1.compareTo(v2) <= 0;
-      case EQ:
-        return v1.compareTo(v2) == 0;
-      case GE:
-        return v1.compareTo(v2) >= 0;
-      case GT:
-        return v1.compareTo(v2) > 0;
-      default:
-        return false;
+      final int op = i;
+      while (i < len && "^~<>=".indexOf(str.charAt(i)) >= 0) {
+        i++;
+      }
+      final int opEnd = i;
+      while (i < len && Character.isWhitespace(str.charAt(i))) {
+        i++;
+      }
+      final int version = i;
+      while (i < len && !Character.isWhitespace(str.charAt(i))) {
+        i++;
       }
+      add(str.substring(op, opEnd), str.substring(version, i));
     }
   }
 
-  private static final String OPS = "\\^|~|<|<=|=|>=|>";
-
-  private static final Pattern OP_MATCH = Pattern.compile("^(" + OPS
-      + ")?\\s?(.*)$");
-
-  private final Map<ParsedVersion, Op> opMap = new TreeMap<ParsedVersion, Op>();
-
-  Range(String str) {
-    str = str.replaceAll("(" + OPS + ")\\s+", "$1");
-    final String[] splits = str.split(" ");
-    for (final String split : splits) {
-      final Matcher matcher = OP_MATCH.matcher(split);
-      if (!matcher.matches()) {
-        throw new IllegalArgumentException(str);
+  private void add(final String op, final String version) {
+    if ("*".equals(version) || "x".equalsIgnoreCase(version)) {
+      return;
+    }
+    final int[] parts = new int[3];
+    final int count = parseParts(version, parts);
+    if (count < 0 || "~".equals(op) && count > 0) {
+      // x-range or tilde range
+      final int n = Math.abs(count);
+      final int xAt = count < 0 ? xIndex(version) : n;
+      if (xAt == 0) {
+        return;
       }
-      final String verStr = matcher.group(2);
-      String op = matcher.group(1);
-      if ("^".equals(op)) {
-        op = "=";
+      lower(ParsedVersion.of(parts[0], parts[1], parts[2]), true);
+      if (xAt == 1 || "~".equals(op) && n == 1) {
+        upper(ParsedVersion.of(parts[0] + 1, 0, 0), false);
+      } else {
+        upper(ParsedVersion.of(parts[0], parts[1] + 1, 0), false);
       }
-      if ("~".equals(op) && !(verStr.contains("x") || verStr.contains("X"))) {
-        this.opMap.putAll(new Range(createTildeVersion(verStr)).opMap);
-      } else if (verStr.contains("x") || verStr.contains("X")) {
-        this.opMap.putAll(new Range(createXVersion(verStr)).opMap);
+      return;
+    }
+    final ParsedVersion parsed = ParsedVersion.parse(version);
+    if (parsed == null) {
+      throw new ParseException(version);
+    }
+    if ("<".equals(op)) {
+      upper(parsed, false);
+    } else if ("<=".equals(op)) {
+      upper(parsed, true);
+    } else if (">".equals(op)) {
+      lower(parsed, false);
+    } else if (">=".equals(op)) {
+      lower(parsed, true);
+    } else if ("".equals(op) || "=".equals(op) || "^".equals(op)) {
+      lower(parsed, true);
+      upper(parsed, true);
+    } else {
+      throw new ParseException(op + version);
+    }
+  }
+
+  /**
+   * Parses up to three numeric or x parts of the main version, x parts are
+   * stored as 0.
+   *
+   * @return Returns the number of parts, negated if any part is an x, or 0 if
+   *         the version has no such form
+   */
+  private static int parseParts(final String version, final int[] parts) {
+    int count = 0;
+    boolean x = false;
+    int i = version.startsWith("v") ? 1 : 0;
+    while (count < 3 && i < version.length()) {
+      final char c = version.charAt(i);
+      if (c == 'x' || c == 'X' || c == '*') {
+        x = true;
+        parts[count++] = 0;
+        i++;
       } else {
-        final ParsedVersion version = ParsedVersion.parse(verStr);
-        if (version == null) {
-          throw new ParseException(verStr);
+        final int start = i;
+        while (i < version.length() && version.charAt(i) >= '0'
+            && version.charAt(i) <= '9') {
+          i++;
         }
-        this.opMap.put(version, Op.lookup(op));
+        if (i == start || i - start > 9) {
+          return 0;
+        }
+        parts[count++] = Integer.parseInt(version.substring(start, i));
+      }
+      if (i < version.length()) {
+        final char sep = version.charAt(i);
+        if (sep == '-' || sep == '+') {
+          break;
+        }
+        if (sep != '.') {
+          return 0;
+        }
+        i++;
       }
     }
+    return x ? -count : count;
   }
 
-  private String createTildeVersion(final String str) {
-    final StringBuilder sb = new StringBuilder();
-
-    final String[] m = str.split("[-\\+\\.]", 4);
-    final int[] n = new int[Math.min(3, m.length)];
-    for (int i = 0; i < n.length; i++) {
-      n[i] = m[i].equalsIgnoreCase("x") ? 0 : Integer.parseInt(m[i]);
+  private static int xIndex(final String version) {
+    int index = 0;
+    for (int i = version.startsWith("v") ? 1 : 0; i < version.length(); i++) {
+      final char c = version.charAt(i);
+      if (c == 'x' || c == 'X' || c == '*') {
+        return index;
+      } else if (c == '.') {
+        index++;
+      } else if (c == '-' || c == '+') {
+        break;
+      }
     }
+    return index;
+  }
 
-    sb.append(">=").append(n[0]);
-    for (int i = 1; i < n.length; i++) {
-      sb.append(".").append(n[i]);
-    }
-    if (n.length == 3 && n.length - 2 >= 0) {
-      n[n.length - 2]++;
-      n[n.length - 1] = 0;
-    } else {
-      n[n.length - 1]++;
-    }
-    sb.append(" <").append(n[0]);
-    for (int i = 1; i < n.length; i++) {
-      sb.append(".").append(n[i]);
+  private void lower(final ParsedVersion version, final boolean inclusive) {
+    final int c = this.min == null ? 1 : version.compareTo(this.min);
+    if (c > 0 || c == 0 && !inclusive) {
+      this.min = version;
+      this.minInclusive = inclusive;
     }
+  }
 
-    return sb.toString();
+  private void upper(final ParsedVersion version, final boolean inclusive) {
+    final int c = this.max == null ? -1 : version.compareTo(this.max);
+    if (c < 0 || c == 0 && !inclusive) {
+      this.max = version;
+      this.maxInclusive = inclusive;
+    }
   }
 
-  private String createXVersion(final String str) {
-    final StringBuilder sb = new StringBuilder();
+  ParsedVersion getMax() {
+    return this.max;
+  }
 
-    final String[] m = str.split("[-\\+\\.]", 4);
-    final int[] n = new int[Math.min(3, m.length)];
-    for (int i = 0; i < n.length; i++) {
-      n[i] = m[i].equalsIgnoreCase("x") ? 0 : Integer.parseInt(m[i]);
+  /**
+   * @return Returns true if the version is lower than every version of this
+   *         range
+   */
+  boolean isBelow(final ParsedVersion version) {
+    if (this.min == null) {
+      return false;
     }
+    final int c = version.compareTo(this.min);
+    return c < 0 || c == 0 && !this.minInclusive;
+  }
 
-    sb.append(">=").append(n[0]);
-    for (int i = 1; i < n.length; i++) {
-      sb.append(".").append(n[i]);
-    }
-    boolean incOnce = false;
-    sb.append(" <");
-    if (m.length > 1 && m[1].equalsIgnoreCase("x")) {
-      sb.append(n[0] + 1);
-      incOnce = true;
-    } else {
-      sb.append(n[0]);
+  boolean satisfies(final ParsedVersion version) {
+    if (version == null || isBelow(version)) {
+      return false;
     }
-    for (int i = 1; i < n.length; i++) {
-      if (!incOnce && m.length > i + 1 && m[i + 1].equalsIgnoreCase("x")) {
-        sb.append(".").append(n[i] + 1);
-      } else {
-        sb.append(".").append(n[i]);
+    if (this.max != null) {
+      final int c = version.compareTo(this.max);
+      if (c > 0 || c == 0 && !this.maxInclusive) {
+        return false;
       }
     }
-
-    return sb.toString();
+    return !version.isPrerelease() || allowsPrerelease(this.min, version)
+        || allowsPrerelease(this.max, version);
   }
 
-  boolean satisfies(final ParsedVersion version) {
-    boolean satisfies = true;
-    for (final Entry<ParsedVersion, Op> entry : this.opMap.entrySet()) {
-      satisfies &= entry.getValue().compare(version, entry.getKey());
-    }
-    return satisfies;
+  private static boolean allowsPrerelease(final ParsedVersion bound,
+      final ParsedVersion version) {
+    return bound != null && bound.isPrerelease() && bound.hasSameTuple(version);
   }
 
   /**
@@ -269,9 +580,16 @@ class Range {
    */
   @Override
   public String toString() {
+    if (this.min != null && this.max != null && this.minInclusive
+        && this.maxInclusive && this.min.compareTo(this.max) == 0) {
+      return "=" + this.min;
+    }
     final StringBuilder sb = new StringBuilder();
-    for (final Entry<ParsedVersion, Op> entry : this.opMap.entrySet()) {
-      sb.append(entry.getValue().op).append(entry.getKey()).append(' ');
+    if (this.min != null) {
+      sb.append(this.minInclusive ? ">=" : ">").append(this.min).append(' ');
+    }
+    if (this.max != null) {
+      sb.append(this.maxInclusive ? "<=" : "<").append(this.max);
     }
     return sb.toString().trim();
   }
@@ -3,8 +3,15 @@ package de.matrixweb.smaller.maven.plugin.node;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.maven.model.Resource;
@@ -57,6 +64,14 @@ public class SmallerNodeBuilderMojo extends AbstractMojo {
 
   private File tempInstall;
 
+  /**
+   * Set this to true to write the package and its requirements into a single
+   * zip archive ${target}/${name}.zip instead of many loose files. The
+   * generated processor hands the archive to the runtime.
+   */
+  @Parameter(defaultValue = "false")
+  private boolean archive;
+
   @Parameter(alias = "script-file")
   private File scriptFile;
 
@@ -77,6 +92,66 @@ public class SmallerNodeBuilderMojo extends AbstractMojo {
   @Parameter
   private String script;
 
+  /**
+   * The default number of node executors a generated processor runs in
+   * parallel. Each executor is started on first use.
+   */
+  @Parameter(defaultValue = "1")
+  private int poolSize;
+
+  /**
+   * The default time in milliseconds a generated processor waits for a free
+   * node executor before it fails.
+   */
+  @Parameter(defaultValue = "60000")
+  private long poolTimeout;
+
+  /**
+   * Set this to true to let a generated processor start its first node
+   * executor in the background when it is created. Otherwise the executor is
+   * started by the first call to execute or to warmUp().
+   */
+  @Parameter(defaultValue = "false")
+  private boolean warmUp;
+
+  /**
+   * The number of results a generated processor keeps to answer calls with
+   * the same files, resource and options without running node again. 0
+   * disables the cache and generates no hashing code. Otherwise every call
+   * reads and hashes the files selected by resultCacheScope before the cache
+   * is checked, and a miss reads all files before and after node to record
+   * the files the script created or changed. A miss costs more than a call
+   * without the cache.
+   */
+  @Parameter(defaultValue = "0")
+  private int resultCacheSize;
+
+  /**
+   * The entry removed from a full result cache. Either 'lru' for the least
+   * recently used or 'fifo' for the oldest one.
+   */
+  @Parameter(defaultValue = "lru")
+  private String resultCachePolicy;
+
+  /**
+   * The files hashed to find a cached result. 'vfs' hashes all files of the
+   * virtual file system, which is safe for scripts reading any file. For
+   * large file systems 'resource' hashes only the resource and the files
+   * named by option values, and must only be used if the script reads no
+   * other files.
+   */
+  @Parameter(defaultValue = "vfs")
+  private String resultCacheScope;
+
+  /**
+   * Set this to true to let a generated processor measure node setup, the
+   * wait for a free executor, the node run and the result lookup. The
+   * metrics are registered as MXBean and could be passed to a listener.
+   * Otherwise no measuring code is generated.
+   */
+  @Parameter(defaultValue = "false")
+  private boolean metrics;
+
   /**
    * Set this to true to force an update of the package.
    */
@@ -84,12 +159,92 @@ public class SmallerNodeBuilderMojo extends AbstractMojo {
   private boolean forceUpdate;
 
   /**
-   * Set this to true to delete 'test', 'tests', 'example' and 'examples'
-   * folders.
+   * The lockfile recording the resolved dependency trees. If it exists and was
+   * written for the configured packages, exactly the recorded versions are
+   * installed without resolving them again. It is rewritten whenever the
+   * packages change or forceUpdate is set.
+   */
+  @Parameter(defaultValue = "${basedir}/smaller-node-lock.json")
+  private File lockfile;
+
+  /**
+   * Set this to true to skip the 'test', 'tests', 'example' and 'examples'
+   * folders of each package.
    */
   @Parameter(alias = "delete-test-and-example", defaultValue = "true")
   private boolean deleteTestAndExampleFolders;
 
+  /**
+   * Globs of the package files to extract, e.g. 'lib/**'. If empty all files
+   * are extracted. The package.json is always extracted.
+   */
+  @Parameter
+  private List<String> includes;
+
+  /**
+   * Globs of the package files to skip while extracting, e.g. '*.md',
+   * 'docs/**', '*.map', '*.ts' or 'benchmark/**'. A glob without '/' matches
+   * file and folder names in any folder.
+   */
+  @Parameter
+  private List<String> excludes;
+
+  /**
+   * The folder to cache downloads and extracted packages in. It could be
+   * shared by several projects and parallel builds, e.g.
+   * ${user.home}/.m2/smaller-npm-cache. Installed package files are read-only
+   * hard links into this folder where the filesystem allows it, so they must
+   * be replaced instead of modified in place.
+   */
+  @Parameter(defaultValue = "${basedir}/target/npm-cache")
+  private File npmCache;
+
+  /**
+   * The number of threads used to download and extract packages in parallel.
+   */
+  @Parameter(defaultValue = "4")
+  private int threads;
+
+  /**
+   * The maximum number of parsed package descriptors kept in memory during
+   * the build.
+   */
+  @Parameter(defaultValue = "1000")
+  private int descriptorCacheSize;
+
+  /**
+   * The time in minutes a cached package descriptor is used before it is
+   * revalidated against the registry. Unchanged descriptors are not
+   * downloaded again. A negative value never revalidates.
+   */
+  @Parameter(defaultValue = "1440")
+  private long metadataTtl;
+
+  /**
+   * The maximum number of http connections to the npm registry.
+   */
+  @Parameter(defaultValue = "8")
+  private int httpConnections;
+
+  /**
+   * The http connect timeout in milliseconds.
+   */
+  @Parameter(defaultValue = "10000")
+  private int httpConnectTimeout;
+
+  /**
+   * The http read timeout in milliseconds.
+   */
+  @Parameter(defaultValue = "60000")
+  private int httpReadTimeout;
+
+  /**
+   * The time in milliseconds an idle http connection is kept open, unless the
+   * server requests otherwise.
+   */
+  @Parameter(defaultValue = "30000")
+  private long httpKeepAlive;
+
   private NpmCache cache;
 
   /**
@@ -135,30 +290,97 @@ public class SmallerNodeBuilderMojo extends AbstractMojo {
     if (this.script == null && this.scriptFile == null) {
       throw new MojoFailureException("Either script or script-file is required");
     }
+    if (!"lru".equals(this.resultCachePolicy)
+        && !"fifo".equals(this.resultCachePolicy)) {
+      throw new MojoFailureException("Unknown resultCachePolicy "
+          + this.resultCachePolicy + ", use lru or fifo");
+    }
+    if (!"vfs".equals(this.resultCacheScope)
+        && !"resource".equals(this.resultCacheScope)) {
+      throw new MojoFailureException("Unknown resultCacheScope "
+          + this.resultCacheScope + ", use vfs or resource");
+    }
 
-    this.cache = new NpmCache(this.basedir);
     try {
-      this.tempInstall = File.createTempFile("smaller-node-builder-temp",
-          ".dir");
-      this.tempInstall.delete();
+      if (!this.forceUpdate && isUpToDate()) {
+        getLog().info(this.name + " is up to date");
+        updateProjectModel(getClassbase().getPath());
+        return;
+      }
+    } catch (final IOException e) {
+      throw new MojoExecutionException("Failed to check " + getFingerprint(),
+          e);
+    }
+
+    final Http http = new Http(this.httpConnections, this.httpConnectTimeout,
+        this.httpReadTimeout, this.httpKeepAlive);
+    this.cache = new NpmCache(this.npmCache, this.descriptorCacheSize, http);
+    this.cache.setMetadataTtl(this.metadataTtl < 0 ? -1 : TimeUnit.MINUTES
+        .toMillis(this.metadataTtl));
+    try {
+      // Install next to the target, so finished packages can be moved
+      this.tempInstall = new File(this.basedir, "target/smaller-node-builder/"
+          + this.name + "-install");
+      PackageStore.delete(this.tempInstall);
       this.tempInstall.mkdirs();
+      final File nodeModules = new File(getPackageTarget(), "node_modules");
+      final Logger log = new MavenLogger();
+      final Lockfile lock = this.forceUpdate ? null : Lockfile
+          .read(this.lockfile);
+      final boolean replay = lock != null && lock.isUpToDate(getPackages());
+      if (lock != null && !replay) {
+        getLog().info("Lockfile " + this.lockfile + " is outdated");
+      }
+      final Map<String, Node> trees = new LinkedHashMap<String, Node>();
+      final EntryFilter filter = getEntryFilter();
+      final InstalledIndex installed = InstalledIndex.read(
+          getInstalledIndex(), filter.getFingerprint());
+      // The index is only valid once all packages are in place
+      FileUtils.deleteQuietly(getInstalledIndex());
+      final Installer installer = new Installer(log, this.cache, this.threads,
+          filter);
       try {
         for (final String pkgSpec : this.packages) {
           getLog().info("Installing " + pkgSpec);
-          final PackageInfo pkg = PackageInfo.createPackage(pkgSpec,
-              new MavenLogger(), this.cache);
-          pkg.install(this.tempInstall, this.tempInstall,
-              this.deleteTestAndExampleFolders);
-          FileUtils.copyDirectory(this.tempInstall, new File(
-              getPackageTarget(), "node_modules"));
+          final Node tree = replay ? lock.toTree(pkgSpec, log, this.cache)
+              : installer.resolve(PackageInfo.createPackage(pkgSpec, log,
+                  this.cache));
+          trees.put(pkgSpec, tree);
+          final File target = new File(nodeModules, tree.getName());
+          if (installed.contains(tree) && target.isDirectory()) {
+            getLog().info(pkgSpec + " is already installed");
+            installer.register(tree);
+            continue;
+          }
+          installed.remove(tree.getName());
+          installer.materialize(tree, this.tempInstall, installed);
+          moveIntoPlace(new File(this.tempInstall, tree.getName()), target);
+        }
+        removeStalePackages(nodeModules, trees.values(), installed);
+        installed.write(getInstalledIndex());
+        if (!replay) {
+          getLog().info("Writing lockfile " + this.lockfile);
+          Lockfile.create(trees).write(this.lockfile);
         }
       } finally {
-        FileUtils.deleteDirectory(this.tempInstall);
+        installer.shutdown();
+        PackageStore.delete(this.tempInstall);
       }
+      getLog().info("Descriptor cache: "
+          + this.cache.getDescriptors().getHits() + " hits, "
+          + this.cache.getDescriptors().getMisses() + " misses");
       final String javaCodeFolder = writeSources();
+      if (this.archive) {
+        writeArchive();
+      } else {
+        FileUtils.deleteQuietly(getArchive());
+      }
+      FileUtils.write(getFingerprint(), fingerprint());
       updateProjectModel(javaCodeFolder);
     } catch (final IOException e) {
       throw new MojoExecutionException("Failed to connect to npm registry", e);
+    } finally {
+      http.shutdown();
     }
   }
 
@@ -169,13 +391,12 @@ public class SmallerNodeBuilderMojo extends AbstractMojo {
             "index.js"));
       }
     } else {
-      FileUtils.write(new File(getPackageTarget(), "index.js"),
-          new ST(IOUtils.toString(getClass().getResource("/index.js.tmpl")))
-              .add("script", this.script).render());
+      writeIfChanged(new File(getPackageTarget(), "index.js"), new ST(
+          IOUtils.toString(getClass().getResource("/index.js.tmpl"))).add(
+          "script", this.script).render());
     }
 
-    final File classbase = new File(this.basedir,
-        "target/generated-sources/npm-processor");
+    final File classbase = getClassbase();
     if (!this.npmOnly) {
       final String[] nameParts = this.name.split("-", 2);
       final String lowername = nameParts[0].toLowerCase();
@@ -183,8 +404,6 @@ public class SmallerNodeBuilderMojo extends AbstractMojo {
           + nameParts[0].substring(1).toLowerCase();
       final String nameVersion = this.name;
       final String uppertype = this.type.toUpperCase();
-      final File classtarget = new File(classbase, "de/matrixweb/smaller/"
-          + lowername);
       String scriptName = "null";
       if (this.useRuntimeScript && this.scriptFile != null) {
         scriptName = this.scriptFile.getAbsolutePath();
@@ -199,19 +418,178 @@ public class SmallerNodeBuilderMojo extends AbstractMojo {
         getLog().info("Using runtime script: " + scriptName);
       }
       classbase.mkdirs();
-      FileUtils.write(
-          new File(classtarget, uppername + "Processor.java"),
+      writeIfChanged(
+          getProcessorFile(),
           new ST(IOUtils.toString(getClass()
               .getResource("/Processor.java.tmpl")))
               .add("lowername", lowername).add("uppername", uppername)
               .add("name", nameParts[0]).add("nameVersion", nameVersion)
               .add("version", nameParts[1]).add("uppertype", uppertype)
               .add("merging", this.merging).add("scriptName", scriptName)
+              .add("archive", this.archive)
+              .add("poolSize", this.poolSize)
+              .add("poolTimeout", this.poolTimeout)
+              .add("warmUp", this.warmUp)
+              .add("resultCache", this.resultCacheSize > 0)
+              .add("resultCacheSize", this.resultCacheSize)
+              .add("resultCacheLru", "lru".equals(this.resultCachePolicy))
+              .add("resultCacheResourceScope",
+                  "resource".equals(this.resultCacheScope))
+              .add("metrics", this.metrics)
               .render());
     }
     return classbase.getPath();
   }
 
+  private void writeArchive() throws IOException {
+    if (ModuleArchive.write(getPackageTarget(), getArchive(),
+        this.name + '/')) {
+      getLog().info("Wrote " + getArchive());
+    }
+    // Loose files of a previous build would be packaged next to the archive
+    PackageStore.delete(new File(this.target, this.name));
+  }
+
+  /**
+   * Replaces the target folder with the given one. Both are expected to be on
+   * the same filesystem, otherwise the folder is copied.
+   */
+  private void moveIntoPlace(final File source, final File target)
+      throws IOException {
+    target.getParentFile().mkdirs();
+    final File old = new File(target.getParentFile(), '.' + target.getName()
+        + ".old");
+    PackageStore.delete(old);
+    if (target.exists() && !target.renameTo(old)) {
+      PackageStore.delete(target);
+    }
+    if (!source.renameTo(target)) {
+      FileUtils.copyDirectory(source, target);
+      PackageStore.delete(source);
+    }
+    PackageStore.delete(old);
+  }
+
+  private void removeStalePackages(final File nodeModules,
+      final Collection<Node> trees, final InstalledIndex installed)
+      throws IOException {
+    final Set<String> names = new HashSet<String>();
+    for (final Node tree : trees) {
+      names.add(tree.getName());
+    }
+    final File[] files = nodeModules.listFiles();
+    if (files != null) {
+      for (final File file : files) {
+        if (!names.contains(file.getName())) {
+          getLog().info("Removing " + file.getName());
+          PackageStore.delete(file);
+          installed.remove(file.getName());
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes the given content only if it differs from the current one, so
+   * unchanged sources do not trigger a recompilation.
+   */
+  private void writeIfChanged(final File file, final String content)
+      throws IOException {
+    if (!file.exists() || !content.equals(FileUtils.readFileToString(file))) {
+      FileUtils.write(file, content);
+    }
+  }
+
+  /**
+   * @return Returns true if the inputs did not change since the last build and
+   *         all outputs still exist
+   */
+  private boolean isUpToDate() throws IOException {
+    final File fingerprint = getFingerprint();
+    if (!fingerprint.exists()
+        || !fingerprint().equals(FileUtils.readFileToString(fingerprint))) {
+      return false;
+    }
+    if (!new File(getPackageTarget(), "node_modules").isDirectory()) {
+      return false;
+    }
+    if (!(this.scriptFile != null && this.useRuntimeScript)
+        && !new File(getPackageTarget(), "index.js").exists()) {
+      return false;
+    }
+    if (this.archive && !getArchive().exists()) {
+      return false;
+    }
+    return this.npmOnly || getProcessorFile().exists();
+  }
+
+  private String fingerprint() throws IOException {
+    final StringBuilder sb = new StringBuilder();
+    sb.append("name=").append(this.name).append('\n');
+    sb.append("type=").append(this.type).append('\n');
+    sb.append("merging=").append(this.merging).append('\n');
+    sb.append("npmOnly=").append(this.npmOnly).append('\n');
+    sb.append("useRuntimeScript=").append(this.useRuntimeScript).append('\n');
+    sb.append("archive=").append(this.archive).append('\n');
+    sb.append("poolSize=").append(this.poolSize).append('\n');
+    sb.append("poolTimeout=").append(this.poolTimeout).append('\n');
+    sb.append("warmUp=").append(this.warmUp).append('\n');
+    sb.append("metrics=").append(this.metrics).append('\n');
+    sb.append("resultCache=").append(this.resultCacheSize).append(' ')
+        .append(this.resultCachePolicy).append(' ')
+        .append(this.resultCacheScope).append('\n');
+    sb.append("filter=").append(getEntryFilter().getFingerprint())
+        .append('\n');
+    for (final String pkgSpec : getPackages()) {
+      sb.append("package=").append(pkgSpec).append('\n');
+    }
+    sb.append("script=").append(this.script).append('\n');
+    if (this.scriptFile != null) {
+      sb.append("scriptFile=").append(this.scriptFile.getAbsolutePath())
+          .append('\n').append(FileUtils.readFileToString(this.scriptFile))
+          .append('\n');
+    }
+    if (this.lockfile.exists()) {
+      sb.append("lockfile=").append(FileUtils.readFileToString(this.lockfile))
+          .append('\n');
+    }
+    sb.append(IOUtils.toString(getClass().getResource("/index.js.tmpl")));
+    sb.append(IOUtils.toString(getClass().getResource("/Processor.java.tmpl")));
+    return DigestUtils.shaHex(sb.toString());
+  }
+
+  private File getFingerprint() {
+    return new File(this.basedir, "target/smaller-node-builder/" + this.name
+        + ".fingerprint");
+  }
+
+  private EntryFilter getEntryFilter() {
+    final List<String> excludes = new ArrayList<String>();
+    if (this.excludes != null) {
+      excludes.addAll(this.excludes);
+    }
+    if (this.deleteTestAndExampleFolders) {
+      excludes.addAll(EntryFilter.TEST_AND_EXAMPLE_FOLDERS);
+    }
+    return new EntryFilter(this.includes, excludes);
+  }
+
+  private File getInstalledIndex() {
+    return new File(this.basedir, "target/smaller-node-builder/" + this.name
+        + ".installed.json");
+  }
+
+  private File getClassbase() {
+    return new File(this.basedir, "target/generated-sources/npm-processor");
+  }
+
+  private File getProcessorFile() {
+    final String shortName = this.name.split("-", 2)[0];
+    return new File(getClassbase(), "de/matrixweb/smaller/"
+        + shortName.toLowerCase() + '/' + shortName.substring(0, 1).toUpperCase()
+        + shortName.substring(1).toLowerCase() + "Processor.java");
+  }
+
   private void updateProjectModel(final String javaCodeFolder) {
     if (!this.npmOnly) {
       this.project.addCompileSourceRoot(javaCodeFolder);
@@ -221,10 +599,21 @@ public class SmallerNodeBuilderMojo extends AbstractMojo {
     this.project.addResource(resource);
   }
 
+  /**
+   * @return Returns the folder the package is installed in. In archive mode
+   *         this is a staging folder outside of the resources.
+   */
   private File getPackageTarget() {
+    if (this.archive) {
+      return new File(this.basedir, "target/smaller-node-builder/" + this.name);
+    }
     return new File(this.target, this.name);
   }
 
+  private File getArchive() {
+    return new File(this.target, this.name + ".zip");
+  }
+
   private class MavenLogger implements Logger {
 
     /**
@@ -243,6 +632,14 @@ public class SmallerNodeBuilderMojo extends AbstractMojo {
       getLog().debug(message);
     }
 
+    /**
+     * @see de.matrixweb.smaller.maven.plugin.node.Logger#warn(java.lang.String)
+     */
+    @Override
+    public void warn(final String message) {
+      getLog().warn(message);
+    }
+
   }
 
 }
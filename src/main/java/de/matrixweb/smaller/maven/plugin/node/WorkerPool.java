@@ -0,0 +1,63 @@
+package de.matrixweb.smaller.maven.plugin.node;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A fixed number of threads used to run the blocking network and disk work of
+ * an installation.
+ * 
+ * @author markusw
+ */
+class WorkerPool {
+
+  private final ExecutorService executor;
+
+  WorkerPool(final int threads) {
+    this.executor = Executors.newFixedThreadPool(Math.max(1, threads));
+  }
+
+  /**
+   * Runs all given tasks and returns their results in the order of the tasks.
+   * The first failing task cancels all others.
+   */
+  <T> List<T> invokeAll(final List<Callable<T>> tasks) throws IOException {
+    final List<Future<T>> futures = new ArrayList<Future<T>>();
+    for (final Callable<T> task : tasks) {
+      futures.add(this.executor.submit(task));
+    }
+    final List<T> results = new ArrayList<T>();
+    try {
+      for (final Future<T> future : futures) {
+        results.add(future.get());
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while installing packages", e);
+    } catch (final ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException("Failed to install packages", e.getCause());
+    } finally {
+      for (final Future<T> future : futures) {
+        future.cancel(true);
+      }
+    }
+    return results;
+  }
+
+  void shutdown() {
+    this.executor.shutdownNow();
+  }
+
+}
@@ -0,0 +1,92 @@
+package de.matrixweb.nodejs;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.matrixweb.vfs.VFS;
+
+/**
+ * Stand-in for the node executor, which runs the configured {@link Script}
+ * instead of node and counts the executors created and disposed.
+ * 
+ * @author markusw
+ */
+public class NodeJsExecutor {
+
+  /** The number of executors created */
+  public static final AtomicInteger CREATED = new AtomicInteger();
+
+  /** The number of executors disposed */
+  public static final AtomicInteger DISPOSED = new AtomicInteger();
+
+  /** The number of script runs */
+  public static final AtomicInteger RUNS = new AtomicInteger();
+
+  /** Runs in place of node */
+  public static volatile Script script;
+
+  /**
+   * Resets all counters.
+   */
+  public static void reset() {
+    CREATED.set(0);
+    DISPOSED.set(0);
+    RUNS.set(0);
+  }
+
+  /**
+   * 
+   */
+  public NodeJsExecutor() {
+    CREATED.incrementAndGet();
+  }
+
+  /**
+   * @param clazz
+   * @param name
+   * @param scriptName
+   * @throws IOException
+   */
+  public void setModule(final Class<?> clazz, final String name,
+      final String scriptName) throws IOException {
+  }
+
+  /**
+   * @param vfs
+   * @param in
+   * @param options
+   * @return Returns the result of the script
+   * @throws IOException
+   */
+  public String run(final VFS vfs, final String in,
+      final Map<String, Object> options) throws IOException {
+    RUNS.incrementAndGet();
+    return script.run(vfs, in, options);
+  }
+
+  /**
+   * 
+   */
+  public void dispose() {
+    DISPOSED.incrementAndGet();
+  }
+
+  /**
+   * The script run by the executor.
+   */
+  public interface Script {
+
+    /**
+     * @param vfs
+     * @param in
+     * @param options
+     * @return Returns the path of the output file or null
+     * @throws IOException
+     */
+    String run(VFS vfs, String in, Map<String, Object> options)
+        throws IOException;
+
+  }
+
+}
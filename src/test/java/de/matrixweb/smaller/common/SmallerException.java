@@ -0,0 +1,25 @@
+package de.matrixweb.smaller.common;
+
+/**
+ * @author markusw
+ */
+public class SmallerException extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * @param message
+   */
+  public SmallerException(final String message) {
+    super(message);
+  }
+
+  /**
+   * @param message
+   * @param cause
+   */
+  public SmallerException(final String message, final Throwable cause) {
+    super(message, cause);
+  }
+
+}
@@ -0,0 +1,44 @@
+package de.matrixweb.smaller.maven.plugin.node;
+
+import java.io.ByteArrayInputStream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * @author markusw
+ */
+public class DescriptorReaderTest {
+
+  /**
+   * @throws Exception
+   */
+  @Test
+  public void testReadDescriptor() throws Exception {
+    final String json = "{\"name\":\"a\",\"readme\":\"long text\","
+        + "\"dist-tags\":{\"latest\":\"1.1.0\",\"beta\":\"2.0.0-beta\"},"
+        + "\"time\":{\"1.0.0\":\"2013-01-01\"},"
+        + "\"versions\":{"
+        + "\"1.0.0\":{\"dependencies\":[\"b\"],\"scripts\":{\"test\":\"x\"}},"
+        + "\"1.1.0\":{\"dependencies\":{\"b\":\"~1.0.0\"},"
+        + "\"dist\":{\"tarball\":\"http://host/a-1.1.0.tgz\",\"shasum\":\"abc\",\"integrity\":\"sha512-def\",\"size\":1}}"
+        + "}}";
+    final Descriptor descriptor = DescriptorReader
+        .readDescriptor(new ByteArrayInputStream(json.getBytes("UTF-8")));
+
+    assertThat(descriptor.getName(), is("a"));
+    assertThat(descriptor.getDistTags().getLatest(), is("1.1.0"));
+    assertThat(descriptor.getVersions().size(), is(2));
+    assertThat(descriptor.getVersions().get("1.0.0").getDependencies()
+        .isEmpty(), is(true));
+    final Descriptor.Version version = descriptor.getVersions().get("1.1.0");
+    assertThat(version.getDependencies().get("b"), is("~1.0.0"));
+    assertThat(version.getDist().getTarball(), is("http://host/a-1.1.0.tgz"));
+    assertThat(version.getDist().getShasum(), is("abc"));
+    assertThat(version.getDist().getIntegrity(), is("sha512-def"));
+  }
+
+}
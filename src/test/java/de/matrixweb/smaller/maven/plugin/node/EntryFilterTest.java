@@ -0,0 +1,46 @@
+package de.matrixweb.smaller.maven.plugin.node;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * @author markusw
+ */
+public class EntryFilterTest {
+
+  /** */
+  @Test
+  public void testExcludes() {
+    final EntryFilter filter = new EntryFilter(null, Arrays.asList("*.md",
+        "docs/**", "*.map", "test/**"));
+    assertThat(filter.accept("index.js"), is(true));
+    assertThat(filter.accept("lib/a.js"), is(true));
+    assertThat(filter.accept("README.md"), is(false));
+    assertThat(filter.accept("lib/CHANGES.md"), is(false));
+    assertThat(filter.accept("dist/a.js.map"), is(false));
+    assertThat(filter.accept("docs/api/a.html"), is(false));
+    assertThat(filter.accept("test/a.js"), is(false));
+    assertThat(filter.accept("lib/test/a.js"), is(true));
+    assertThat(filter.getFingerprint().length(), is(8));
+  }
+
+  /** */
+  @Test
+  public void testIncludes() {
+    final EntryFilter filter = new EntryFilter(Arrays.asList("lib/**",
+        "index.js"), Arrays.asList("**/*.ts"));
+    assertThat(filter.accept("package.json"), is(true));
+    assertThat(filter.accept("index.js"), is(true));
+    assertThat(filter.accept("lib/a/b.js"), is(true));
+    assertThat(filter.accept("lib/a/b.d.ts"), is(false));
+    assertThat(filter.accept("bin/cli.js"), is(false));
+    assertThat(EntryFilter.ALL.accept("bin/cli.js"), is(true));
+    assertThat(EntryFilter.ALL.getFingerprint(), is(""));
+  }
+
+}
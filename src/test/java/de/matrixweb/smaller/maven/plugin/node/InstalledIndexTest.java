@@ -0,0 +1,46 @@
+package de.matrixweb.smaller.maven.plugin.node;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * @author markusw
+ */
+public class InstalledIndexTest {
+
+  /**
+   * @throws Exception
+   */
+  @Test
+  public void testContainsInstalledTree() throws Exception {
+    final NpmCache cache = new NpmCache(new File("."));
+    final Node root = new Node(null, PackageInfo.locked("a", "1.0.0",
+        "http://registry.npmjs.org/a/-/a-1.0.0.tgz", "abc", null, null, cache),
+        null);
+    root.addChild("~2.0.0", PackageInfo.locked("b", "2.0.1",
+        "http://registry.npmjs.org/b/-/b-2.0.1.tgz", "def", null, null, cache));
+
+    final File file = new File("./target/test-installed/index.json");
+    file.delete();
+    final InstalledIndex index = InstalledIndex.read(file, "true");
+    assertThat(index.contains(root), is(false));
+    index.add("", "a", "1.0.0");
+    index.add("a/node_modules", "b", "2.0.1");
+    index.write(file);
+
+    assertThat(InstalledIndex.read(file, "true").contains(root), is(true));
+    assertThat(InstalledIndex.read(file, "false").contains(root), is(false));
+
+    index.add("a/node_modules", "c", "1.0.0");
+    assertThat(index.contains(root), is(false));
+    index.remove("a");
+    assertThat(index.getVersion("", "a"), is(nullValue()));
+    assertThat(index.getVersion("a/node_modules", "b"), is(nullValue()));
+  }
+
+}
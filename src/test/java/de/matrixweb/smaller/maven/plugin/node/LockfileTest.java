@@ -0,0 +1,73 @@
+package de.matrixweb.smaller.maven.plugin.node;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * @author markusw
+ */
+public class LockfileTest {
+
+  /**
+   * @throws Exception
+   */
+  @Test
+  public void testWriteAndReplay() throws Exception {
+    final NpmCache cache = new NpmCache(new File("."));
+    final Node root = new Node(null, PackageInfo.locked("a", "1.0.0",
+        "http://registry.npmjs.org/a/-/a-1.0.0.tgz", "abc", null, null, cache),
+        null);
+    root.addChild("~2.0.0", PackageInfo.locked("b", "2.0.1",
+        "http://registry.npmjs.org/b/-/b-2.0.1.tgz", "def", null, null, cache));
+    final Map<String, Node> trees = new LinkedHashMap<String, Node>();
+    trees.put("a@1.0.0", root);
+
+    final File file = new File("./target/test-lockfile/smaller-node-lock.json");
+    Lockfile.create(trees).write(file);
+    final Lockfile lockfile = Lockfile.read(file);
+
+    assertThat(lockfile.isUpToDate(Arrays.asList("a@1.0.0")), is(true));
+    assertThat(lockfile.isUpToDate(Arrays.asList("a@1.0.1")), is(false));
+
+    final Node replayed = lockfile.toTree("a@1.0.0", null, cache);
+    assertThat(replayed.getPackage().getVersion(), is("1.0.0"));
+    final Node child = replayed.find("b");
+    assertThat(child.getRange(), is("~2.0.0"));
+    assertThat(child.getPackage().getVersion(), is("2.0.1"));
+    assertThat(child.getPackage().getTarball(),
+        is("http://registry.npmjs.org/b/-/b-2.0.1.tgz"));
+    assertThat(child.getPackage().getShasum(), is("def"));
+  }
+
+  /**
+   * @throws Exception
+   */
+  @Test
+  public void testReplayWithoutShasum() throws Exception {
+    final NpmCache cache = new NpmCache(new File("."));
+    final Node root = new Node(null, PackageInfo.locked("a", "1.0.0",
+        "http://localhost:1/a/-/a-1.0.0.tgz", null,
+        "sha512-abc", null, cache), null);
+    final Map<String, Node> trees = new LinkedHashMap<String, Node>();
+    trees.put("a@1.0.0", root);
+
+    final File file = new File(
+        "./target/test-lockfile/smaller-node-lock-integrity.json");
+    Lockfile.create(trees).write(file);
+
+    // A locked package must not ask the registry for a missing shasum
+    final PackageInfo replayed = Lockfile.read(file)
+        .toTree("a@1.0.0", null, cache).getPackage();
+    assertThat(replayed.getShasum(), is(nullValue()));
+    assertThat(replayed.getIntegrity(), is("sha512-abc"));
+  }
+
+}
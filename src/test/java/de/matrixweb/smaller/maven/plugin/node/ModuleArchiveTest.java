@@ -0,0 +1,50 @@
+package de.matrixweb.smaller.maven.plugin.node;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * @author markusw
+ */
+public class ModuleArchiveTest {
+
+  /**
+   * @throws IOException
+   */
+  @Test
+  public void testWrite() throws IOException {
+    final File base = new File("target/module-archive-test");
+    FileUtils.deleteDirectory(base);
+    final File dir = new File(base, "test-1.0.0");
+    FileUtils.write(new File(dir, "index.js"), "module.exports = {};");
+    FileUtils.write(new File(dir, "node_modules/a/package.json"), "{}");
+    final File archive = new File(base, "test-1.0.0.zip");
+
+    assertThat(ModuleArchive.write(dir, archive, "test-1.0.0/"), is(true));
+    final ZipFile zip = new ZipFile(archive);
+    try {
+      assertThat(IOUtils.toString(zip.getInputStream(zip
+          .getEntry("test-1.0.0/index.js"))), is("module.exports = {};"));
+      assertThat(zip.getEntry("test-1.0.0/node_modules/a/package.json"),
+          is(notNullValue()));
+      assertThat(zip.getEntry("test-1.0.0/node_modules/").isDirectory(),
+          is(true));
+    } finally {
+      zip.close();
+    }
+
+    assertThat(ModuleArchive.write(dir, archive, "test-1.0.0/"), is(false));
+    FileUtils.write(new File(dir, "index.js"), "module.exports = 1;");
+    assertThat(ModuleArchive.write(dir, archive, "test-1.0.0/"), is(true));
+  }
+
+}
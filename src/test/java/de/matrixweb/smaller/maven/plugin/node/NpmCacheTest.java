@@ -0,0 +1,320 @@
+package de.matrixweb.smaller.maven.plugin.node;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import static org.junit.Assert.*;
+
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * @author markusw
+ */
+public class NpmCacheTest {
+
+  private HttpServer server;
+
+  private final List<Integer> responses = new ArrayList<Integer>();
+
+  private final List<String> warnings = new ArrayList<String>();
+
+  private String body = "{\"name\":\"a\"}";
+
+  private long delay = 0;
+
+  private NpmCache cache;
+
+  private String url;
+
+  private final Logger log = new Logger() {
+    @Override
+    public void info(final String message) {
+    }
+
+    @Override
+    public void debug(final String message) {
+    }
+
+    @Override
+    public void warn(final String message) {
+      NpmCacheTest.this.warnings.add(message);
+    }
+  };
+
+  /**
+   * @throws IOException
+   */
+  @Before
+  public void setUp() throws IOException {
+    final File base = new File("./target/test-npm-cache");
+    FileUtils.deleteDirectory(base);
+    this.cache = new NpmCache(base);
+
+    this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    this.server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(final HttpExchange exchange) throws IOException {
+        try {
+          Thread.sleep(NpmCacheTest.this.delay);
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        final String etag = '"' + Integer.toHexString(NpmCacheTest.this.body
+            .hashCode()) + '"';
+        exchange.getResponseHeaders().add("ETag", etag);
+        if (etag.equals(exchange.getRequestHeaders().getFirst(
+            "If-None-Match"))) {
+          respond(exchange, 304, null);
+        } else {
+          respond(exchange, 200, NpmCacheTest.this.body);
+        }
+      }
+    });
+    this.server.start();
+    this.url = "http://localhost:" + this.server.getAddress().getPort() + "/a";
+  }
+
+  private void respond(final HttpExchange exchange, final int status,
+      final String content) throws IOException {
+    this.responses.add(status);
+    if (content == null) {
+      exchange.sendResponseHeaders(status, -1);
+    } else {
+      final byte[] bytes = content.getBytes("UTF-8");
+      exchange.sendResponseHeaders(status, bytes.length);
+      final OutputStream out = exchange.getResponseBody();
+      out.write(bytes);
+      out.close();
+    }
+    exchange.close();
+  }
+
+  /** */
+  @After
+  public void tearDown() {
+    this.server.stop(0);
+  }
+
+  /**
+   * @throws Exception
+   */
+  @Test
+  public void testMetadataIsCachedWithinTtl() throws Exception {
+    this.cache.setMetadataTtl(60000);
+    assertThat(read(), is("{\"name\":\"a\"}"));
+    assertThat(read(), is("{\"name\":\"a\"}"));
+    assertThat(this.responses, is(Arrays.asList(200)));
+  }
+
+  /**
+   * @throws Exception
+   */
+  @Test
+  public void testExpiredMetadataIsRevalidated() throws Exception {
+    this.cache.setMetadataTtl(0);
+    assertThat(read(), is("{\"name\":\"a\"}"));
+    assertThat(read(), is("{\"name\":\"a\"}"));
+    this.body = "{\"name\":\"b\"}";
+    assertThat(read(), is("{\"name\":\"b\"}"));
+    assertThat(this.responses, is(Arrays.asList(200, 304, 200)));
+  }
+
+  /**
+   * @throws Exception
+   */
+  @Test
+  public void testExpiredMetadataIsUsedIfRegistryIsUnavailable()
+      throws Exception {
+    this.cache.setMetadataTtl(0);
+    assertThat(read(), is("{\"name\":\"a\"}"));
+    this.server.stop(0);
+    assertThat(read(), is("{\"name\":\"a\"}"));
+  }
+
+  /**
+   * @throws Exception
+   */
+  @Test
+  public void testUnavailableRegistryIsNotAskedAgainWithinTtl()
+      throws Exception {
+    this.cache.setMetadataTtl(60000);
+    assertThat(read(), is("{\"name\":\"a\"}"));
+    for (final File file : FileUtils.listFiles(new File(
+        "./target/test-npm-cache"), null, true)) {
+      file.setLastModified(0);
+    }
+    this.server.stop(0);
+    assertThat(read(), is("{\"name\":\"a\"}"));
+    assertThat(read(), is("{\"name\":\"a\"}"));
+    assertThat(this.warnings.size(), is(1));
+  }
+
+  /**
+   * @throws Exception
+   */
+  @Test
+  public void testDownloadIsVerified() throws Exception {
+    final Integrity valid = Integrity.create(null,
+        DigestUtils.shaHex(this.body));
+    final InputStream in = this.cache.fetch(this.url, false, this.log,
+        "Downloading", valid);
+    assertThat(IOUtils.toString(in, "UTF-8"), is("{\"name\":\"a\"}"));
+    in.close();
+
+    final Integrity invalid = Integrity.create(
+        "sha512-" + Base64.encodeBase64String(DigestUtils.sha512("other")),
+        null);
+    try {
+      this.cache.fetch(this.url + "?other", false, this.log, "Downloading",
+          invalid);
+      fail("Expected integrity check to fail");
+    } catch (final IOException e) {
+      assertThat(this.cache.get(this.url + "?other"), is(nullValue()));
+    }
+    // A cached entry with another digest is removed instead of returned
+    assertThat(this.cache.get(this.url, false, invalid), is(nullValue()));
+    assertThat(this.cache.get(this.url), is(nullValue()));
+  }
+
+  /**
+   * @throws Exception
+   */
+  @Test
+  public void testLockIsSharedByCachesOfTheSameFolder() throws Exception {
+    final NpmCache other = new NpmCache(new File("./target/test-npm-cache"));
+    final List<String> events = new ArrayList<String>();
+    final NpmCache.CacheLock lock = this.cache.lock(this.url);
+    final Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          final NpmCache.CacheLock second = other.lock(NpmCacheTest.this.url);
+          synchronized (events) {
+            events.add("second");
+          }
+          second.release();
+        } catch (final IOException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    };
+    thread.start();
+    Thread.sleep(200);
+    synchronized (events) {
+      events.add("first");
+    }
+    lock.release();
+    thread.join();
+    assertThat(events, is(Arrays.asList("first", "second")));
+  }
+
+  /**
+   * @throws Exception
+   */
+  @Test
+  public void testConcurrentFetchesShareOneDownload() throws Exception {
+    this.delay = 200;
+    final AtomicInteger locks = new AtomicInteger();
+    final NpmCache cache = new NpmCache(new File("./target/test-npm-cache")) {
+      @Override
+      CacheLock lock(final String url) throws IOException {
+        locks.incrementAndGet();
+        return super.lock(url);
+      }
+    };
+    final List<String> contents = new ArrayList<String>();
+    final List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 4; i++) {
+      final Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            final InputStream in = cache.fetch(NpmCacheTest.this.url, false,
+                NpmCacheTest.this.log, "Downloading");
+            try {
+              synchronized (contents) {
+                contents.add(IOUtils.toString(in, "UTF-8"));
+              }
+            } finally {
+              in.close();
+            }
+          } catch (final IOException e) {
+            throw new IllegalStateException(e);
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+    assertThat(contents.size(), is(4));
+    assertThat(contents.get(3), is("{\"name\":\"a\"}"));
+    assertThat(this.responses, is(Arrays.asList(200)));
+    // The waiting threads neither lock nor check the cache again
+    assertThat(locks.get(), is(1));
+  }
+
+  /**
+   * @throws Exception
+   */
+  @Test
+  public void testVerifiedFetchDoesNotJoinAnUnverifiedDownload()
+      throws Exception {
+    this.delay = 300;
+    final Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          NpmCacheTest.this.cache.fetch(NpmCacheTest.this.url, false,
+              NpmCacheTest.this.log, "Downloading").close();
+        } catch (final IOException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    };
+    thread.start();
+    Thread.sleep(100);
+    final Integrity invalid = Integrity.create(
+        "sha512-" + Base64.encodeBase64String(DigestUtils.sha512("other")),
+        null);
+    try {
+      this.cache.fetch(this.url, false, this.log, "Downloading", invalid);
+      fail("Expected integrity check to fail");
+    } catch (final IOException e) {
+      // expected
+    } finally {
+      thread.join();
+    }
+  }
+
+  private String read() throws IOException {
+    final InputStream in = this.cache.getMetadata(this.url, null, this.log);
+    try {
+      return IOUtils.toString(in, "UTF-8");
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+  }
+
+}
@@ -0,0 +1,84 @@
+package de.matrixweb.smaller.maven.plugin.node;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * @author markusw
+ */
+public class PackageStoreTest {
+
+  private final Logger log = new Logger() {
+    @Override
+    public void info(final String message) {
+    }
+
+    @Override
+    public void debug(final String message) {
+    }
+
+    @Override
+    public void warn(final String message) {
+    }
+  };
+
+  /**
+   * @throws IOException
+   */
+  @Test
+  public void testInstalledFilesDoNotModifyTheStore() throws IOException {
+    final File base = new File("target/package-store-test");
+    PackageStore.delete(base);
+    final PackageStore store = new PackageStore(new File(base, "store"),
+        this.log);
+    final File temp = store.createTemp("abc");
+    FileUtils.write(new File(temp, "lib/index.js"), "module.exports = 1;");
+    final File stored = store.add("abc", temp);
+
+    final File target = new File(base, "node_modules/a");
+    store.install(stored, target);
+    final File installed = new File(target, "lib/index.js");
+    assertThat(FileUtils.readFileToString(installed),
+        is("module.exports = 1;"));
+    assertThat(isWritable(installed), is(false));
+    assertThat(isWritable(new File(stored, "lib/index.js")), is(false));
+  }
+
+  /**
+   * @throws IOException
+   */
+  @Test
+  public void testDeleteInstalledPackageKeepsTheStore() throws IOException {
+    final File base = new File("target/package-store-test");
+    PackageStore.delete(base);
+    final PackageStore store = new PackageStore(new File(base, "store"),
+        this.log);
+    final File temp = store.createTemp("abc");
+    FileUtils.write(new File(temp, "lib/index.js"), "module.exports = 1;");
+    final File stored = store.add("abc", temp);
+    final File target = new File(base, "node_modules/a");
+    store.install(stored, target);
+    store.install(stored, target);
+
+    PackageStore.delete(target);
+    assertThat(target.exists(), is(false));
+    assertThat(FileUtils.readFileToString(new File(stored, "lib/index.js")),
+        is("module.exports = 1;"));
+  }
+
+  // canWrite() is always true for root
+  private boolean isWritable(final File file) throws IOException {
+    return Files.getPosixFilePermissions(file.toPath()).contains(
+        PosixFilePermission.OWNER_WRITE);
+  }
+
+}
@@ -0,0 +1,349 @@
+package de.matrixweb.smaller.maven.plugin.node;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.ObjectName;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.stringtemplate.v4.ST;
+
+import de.matrixweb.nodejs.NodeJsExecutor;
+import de.matrixweb.smaller.common.SmallerException;
+import de.matrixweb.smaller.resource.Processor;
+import de.matrixweb.smaller.resource.Resource;
+import de.matrixweb.smaller.resource.ResourceResolver;
+import de.matrixweb.vfs.VFS;
+
+import static org.junit.Assert.*;
+
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * Renders the processor template, compiles it against stand-ins of the
+ * smaller API and runs it with a script replacing node.
+ * 
+ * @author markusw
+ */
+public class ProcessorTemplateTest {
+
+  private Processor processor;
+
+  /**
+   * 
+   */
+  @Before
+  public void setUp() {
+    NodeJsExecutor.reset();
+    NodeJsExecutor.script = new NodeJsExecutor.Script() {
+      @Override
+      public String run(final VFS vfs, final String in,
+          final Map<String, Object> options) throws IOException {
+        if ("/bad.js".equals(in)) {
+          throw new SmallerException("Syntax error in " + in);
+        } else if ("/crash.js".equals(in)) {
+          throw new IOException("node died");
+        }
+        write(vfs, "/out.js", "out:" + read(vfs, in));
+        return "out.js";
+      }
+    };
+  }
+
+  /**
+   * 
+   */
+  @After
+  public void tearDown() {
+    if (this.processor != null) {
+      this.processor.dispose();
+    }
+  }
+
+  /**
+   * @throws Exception
+   */
+  @Test
+  public void testExecutorsAreReusedAndCreatedAgainAfterDispose()
+      throws Exception {
+    this.processor = create("pool", false, false, false);
+    final VFS vfs = vfs("/in.js", "a");
+
+    assertThat(read(vfs, execute(vfs, "/in.js").getPath()), is("out:a"));
+    execute(vfs, "/in.js");
+    assertThat(NodeJsExecutor.CREATED.get(), is(1));
+    assertThat(NodeJsExecutor.RUNS.get(), is(2));
+
+    this.processor.dispose();
+    assertThat(NodeJsExecutor.DISPOSED.get(), is(1));
+    execute(vfs, "/in.js");
+    assertThat(NodeJsExecutor.CREATED.get(), is(2));
+  }
+
+  /**
+   * @throws Exception
+   */
+  @Test
+  public void testOnlyBrokenExecutorsAreDisposed() throws Exception {
+    this.processor = create("failure", false, false, false);
+    final VFS vfs = vfs("/in.js", "a");
+    try {
+      execute(vfs, "/bad.js");
+      fail("Expected a script error");
+    } catch (final SmallerException e) {
+      // expected
+    }
+    execute(vfs, "/in.js");
+    assertThat(NodeJsExecutor.CREATED.get(), is(1));
+    assertThat(NodeJsExecutor.DISPOSED.get(), is(0));
+
+    try {
+      execute(vfs, "/crash.js");
+      fail("Expected a broken executor");
+    } catch (final IOException e) {
+      // expected
+    }
+    assertThat(NodeJsExecutor.DISPOSED.get(), is(1));
+    execute(vfs, "/in.js");
+    assertThat(NodeJsExecutor.CREATED.get(), is(2));
+  }
+
+  /**
+   * @throws Exception
+   */
+  @Test
+  public void testMetricsAreRegisteredWhileInUse() throws Exception {
+    this.processor = create("metered", false, false, true);
+    final ObjectName query = new ObjectName(
+        "de.matrixweb.smaller:type=MeteredProcessor,*");
+    final VFS vfs = vfs("/in.js", "a");
+    execute(vfs, "/in.js");
+    assertThat(ManagementFactory.getPlatformMBeanServer()
+        .queryNames(query, null).size(), is(1));
+
+    this.processor.dispose();
+    assertThat(ManagementFactory.getPlatformMBeanServer()
+        .queryNames(query, null).size(), is(0));
+    execute(vfs, "/in.js");
+    assertThat(ManagementFactory.getPlatformMBeanServer()
+        .queryNames(query, null).size(), is(1));
+  }
+
+  /**
+   * @throws Exception
+   */
+  @Test
+  public void testResultCacheReplaysAllChangedFiles() throws Exception {
+    NodeJsExecutor.script = new NodeJsExecutor.Script() {
+      @Override
+      public String run(final VFS vfs, final String in,
+          final Map<String, Object> options) throws IOException {
+        final String content = read(vfs, in);
+        write(vfs, in, "edited:" + content);
+        if (options != null && options.containsKey("inplace")) {
+          return null;
+        }
+        write(vfs, "/maps/out.js.map", "map:" + content);
+        write(vfs, "/out.js", "out:" + content);
+        return "out.js";
+      }
+    };
+    this.processor = create("cached", true, false, false);
+
+    execute(vfs("/in.js", "a"), "/in.js");
+    final VFS vfs = vfs("/in.js", "a");
+    assertThat(execute(vfs, "/in.js").getPath(), is("/out.js"));
+    assertThat(NodeJsExecutor.RUNS.get(), is(1));
+    assertThat(read(vfs, "/out.js"), is("out:a"));
+    assertThat(read(vfs, "/maps/out.js.map"), is("map:a"));
+    assertThat(read(vfs, "/in.js"), is("edited:a"));
+
+    final Map<String, Object> options = Collections
+        .<String, Object> singletonMap("inplace", "true");
+    this.processor.execute(vfs("/in.js", "b"), resource("/in.js"), options);
+    final VFS inplace = vfs("/in.js", "b");
+    assertThat(this.processor.execute(inplace, resource("/in.js"), options)
+        .getPath(), is("/in.js"));
+    assertThat(NodeJsExecutor.RUNS.get(), is(2));
+    assertThat(read(inplace, "/in.js"), is("edited:b"));
+  }
+
+  /**
+   * @throws Exception
+   */
+  @Test
+  public void testIdenticalConcurrentCallsShareOneRun() throws Exception {
+    NodeJsExecutor.script = new NodeJsExecutor.Script() {
+      @Override
+      public String run(final VFS vfs, final String in,
+          final Map<String, Object> options) throws IOException {
+        try {
+          Thread.sleep(300);
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        write(vfs, "/out.js", "out:" + read(vfs, in));
+        return "out.js";
+      }
+    };
+    this.processor = create("coalesced", true, true, false);
+
+    final List<VFS> vfss = new ArrayList<VFS>();
+    final List<Thread> threads = new ArrayList<Thread>();
+    final List<Throwable> errors = Collections
+        .synchronizedList(new ArrayList<Throwable>());
+    for (int i = 0; i < 4; i++) {
+      final VFS vfs = vfs("/in.js", "a");
+      vfss.add(vfs);
+      final Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            execute(vfs, "/in.js");
+          } catch (final Throwable e) {
+            errors.add(e);
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+    assertThat(errors.isEmpty(), is(true));
+    assertThat(NodeJsExecutor.RUNS.get(), is(1));
+    for (final VFS vfs : vfss) {
+      assertThat(read(vfs, "/out.js"), is("out:a"));
+    }
+  }
+
+  /**
+   * @throws Exception
+   */
+  @Test
+  public void testBatchRejectsSharedOutfiles() throws Exception {
+    NodeJsExecutor.script = new NodeJsExecutor.Script() {
+      @Override
+      public String run(final VFS vfs, final String in,
+          final Map<String, Object> options) throws IOException {
+        write(vfs, "/out.js", "out");
+        write(vfs, "/.batch-results", "out.js\nout.js");
+        return ".batch-results";
+      }
+    };
+    this.processor = create("batch", false, false, false);
+    final VFS vfs = vfs("/a.js", "a");
+    write(vfs, "/b.js", "b");
+    final Method executeBatch = this.processor.getClass().getMethod(
+        "executeBatch", VFS.class, List.class, Map.class);
+    try {
+      executeBatch.invoke(this.processor, vfs,
+          Arrays.asList(resource("/a.js"), resource("/b.js")), null);
+      fail("Expected the shared outfile to be rejected");
+    } catch (final InvocationTargetException e) {
+      assertThat(e.getCause(), is(instanceOf(SmallerException.class)));
+    }
+  }
+
+  private Resource execute(final VFS vfs, final String path)
+      throws IOException {
+    return this.processor.execute(vfs, resource(path), null);
+  }
+
+  private static Processor create(final String name,
+      final boolean resultCache, final boolean resourceScope,
+      final boolean metrics) throws Exception {
+    final String uppername = Character.toUpperCase(name.charAt(0))
+        + name.substring(1);
+    final String source = new ST(IOUtils.toString(ProcessorTemplateTest.class
+        .getResource("/Processor.java.tmpl"))).add("lowername", name)
+        .add("uppername", uppername).add("name", name)
+        .add("nameVersion", name + "-1.0.0").add("version", "1.0.0")
+        .add("uppertype", "JS").add("merging", false)
+        .add("scriptName", "null").add("archive", false).add("poolSize", 2)
+        .add("poolTimeout", 1000).add("warmUp", false)
+        .add("resultCache", resultCache).add("resultCacheSize", 10)
+        .add("resultCacheLru", true).add("resultCacheResourceScope", resourceScope)
+        .add("metrics", metrics).render();
+
+    final File base = new File("target/processor-template-test/" + name);
+    FileUtils.deleteDirectory(base);
+    final File file = new File(base, "src/de/matrixweb/smaller/" + name + '/'
+        + uppername + "Processor.java");
+    FileUtils.write(file, source);
+    final File classes = new File(base, "classes");
+    classes.mkdirs();
+    final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    final String classpath = new File(VFS.class.getProtectionDomain()
+        .getCodeSource().getLocation().toURI()).getPath();
+    assertThat(compiler.run(null, null, null, "-nowarn", "-classpath",
+        classpath, "-d", classes.getPath(), file.getPath()), is(0));
+
+    final ClassLoader loader = new URLClassLoader(new URL[] { classes.toURI()
+        .toURL() }, ProcessorTemplateTest.class.getClassLoader());
+    return (Processor) loader
+        .loadClass("de.matrixweb.smaller." + name + '.' + uppername + "Processor")
+        .getConstructor(String.class, int.class, long.class)
+        .newInstance("1.0.0", 2, 1000L);
+  }
+
+  private static VFS vfs(final String path, final String content)
+      throws IOException {
+    final VFS vfs = new VFS();
+    write(vfs, path, content);
+    return vfs;
+  }
+
+  private static Resource resource(final String path) {
+    return new Resource() {
+      @Override
+      public String getPath() {
+        return path;
+      }
+
+      @Override
+      public ResourceResolver getResolver() {
+        return new ResourceResolver() {
+          @Override
+          public Resource resolve(final String other) {
+            return resource(other);
+          }
+        };
+      }
+    };
+  }
+
+  private static String read(final VFS vfs, final String path)
+      throws IOException {
+    return IOUtils.toString(vfs.find(path).getInputStream(), "UTF-8");
+  }
+
+  private static void write(final VFS vfs, final String path,
+      final String content) throws IOException {
+    final OutputStream out = vfs.find(path).getOutputStream();
+    try {
+      out.write(content.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+  }
+
+}
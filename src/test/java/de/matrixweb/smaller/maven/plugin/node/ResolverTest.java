@@ -0,0 +1,118 @@
+package de.matrixweb.smaller.maven.plugin.node;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * @author markusw
+ */
+public class ResolverTest {
+
+  private static final String REGISTRY = "http://registry.npmjs.org/";
+
+  private final Logger log = new Logger() {
+    @Override
+    public void info(final String message) {
+    }
+
+    @Override
+    public void debug(final String message) {
+    }
+
+    @Override
+    public void warn(final String message) {
+    }
+  };
+
+  private NpmCache cache;
+
+  private WorkerPool workers;
+
+  private Resolver resolver;
+
+  /**
+   * @throws IOException
+   */
+  @Before
+  public void setUp() throws IOException {
+    final File base = new File("./target/test-resolver");
+    FileUtils.deleteDirectory(base);
+    this.cache = new NpmCache(base);
+    this.cache.setMetadataTtl(-1);
+    this.workers = new WorkerPool(2);
+    this.resolver = new Resolver(this.log, this.cache, this.workers);
+  }
+
+  /**
+   * @throws IOException
+   */
+  @After
+  public void tearDown() throws IOException {
+    this.workers.shutdown();
+    this.resolver.dispose();
+  }
+
+  /**
+   * @throws Exception
+   */
+  @Test
+  public void testHoistsAndPrefersSharedVersion() throws Exception {
+    publish("app", "1.0.0", "{\"x\":\">=1.0.0\",\"y\":\"1.x\"}");
+    publish("x", "1.1.0", "{}", "1.2.0", "{}");
+    publish("y", "1.0.0", "{\"x\":\"~1.1.0\",\"z\":\"1.x\"}");
+    publish("z", "1.0.0", "{}");
+
+    final Node root = this.resolver.resolve(PackageInfo.resolve("app", "1.x",
+        this.log, this.cache));
+
+    assertThat(root.getChildren().keySet().toString(), is("[x, y, z]"));
+    assertThat(root.find("x").getPackage().getVersion(), is("1.1.0"));
+    assertThat(root.find("y").getChildren().isEmpty(), is(true));
+  }
+
+  /**
+   * @throws Exception
+   */
+  @Test
+  public void testNestsConflictingVersion() throws Exception {
+    publish("app", "1.0.0", "{\"x\":\"2.x\",\"y\":\"1.x\"}");
+    publish("x", "1.0.0", "{}", "2.0.0", "{}");
+    publish("y", "1.0.0", "{\"x\":\"1.x\"}");
+
+    final Node root = this.resolver.resolve(PackageInfo.resolve("app", "1.x",
+        this.log, this.cache));
+
+    assertThat(root.find("x").getPackage().getVersion(), is("2.0.0"));
+    final Node y = root.find("y");
+    assertThat(y.getChildren().keySet().toString(), is("[x]"));
+    assertThat(y.find("x").getPackage().getVersion(), is("1.0.0"));
+  }
+
+  private void publish(final String name, final String... versions)
+      throws IOException {
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < versions.length; i += 2) {
+      sb.append(i > 0 ? "," : "").append('"').append(versions[i])
+          .append("\":{\"dependencies\":").append(versions[i + 1])
+          .append(",\"dist\":{\"tarball\":\"").append(REGISTRY)
+          .append(name).append("/-/").append(name).append('-')
+          .append(versions[i]).append(".tgz\"}}");
+    }
+    final String json = "{\"name\":\"" + name
+        + "\",\"dist-tags\":{\"latest\":\"" + versions[versions.length - 2]
+        + "\"},\"versions\":{" + sb + "}}";
+    this.cache.put(REGISTRY + name,
+        new ByteArrayInputStream(json.getBytes("UTF-8")));
+  }
+
+}
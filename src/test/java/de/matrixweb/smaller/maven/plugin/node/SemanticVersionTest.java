@@ -1,5 +1,7 @@
 package de.matrixweb.smaller.maven.plugin.node;
 
+import java.util.Arrays;
+
 import org.junit.Test;
 
 import static org.junit.Assert.*;
@@ -28,4 +30,37 @@ public class SemanticVersionTest {
     assertThat(new Range("~1.2.0").toString(), is(">=1.2.0 <1.3.0"));
   }
 
+  /** */
+  @Test
+  public void testParse() {
+    assertThat(ParsedVersion.parse("v1.2").toString(), is("1.2.0"));
+    assertThat(ParsedVersion.parse("1.2.3-beta.1+b.7").toString(),
+        is("1.2.3-beta.1+b.7"));
+    assertThat(ParsedVersion.parse("01.2.3"), is(nullValue()));
+    assertThat(ParsedVersion.parse("1.2.3-01"), is(nullValue()));
+    assertThat(ParsedVersion.parse("1.2.3.4"), is(nullValue()));
+    assertThat(ParsedVersion.parse("1.2.3-alpha").compareTo(
+        ParsedVersion.parse("1.2.3-alpha.1")) < 0, is(true));
+    assertThat(ParsedVersion.parse("1.2.3-beta.2").compareTo(
+        ParsedVersion.parse("1.2.3-beta.11")) < 0, is(true));
+    assertThat(ParsedVersion.parse("1.2.3-rc.1").compareTo(
+        ParsedVersion.parse("1.2.3")) < 0, is(true));
+  }
+
+  /** */
+  @Test
+  public void testBestMatch() {
+    final Versions versions = new Versions(Arrays.asList("1.0.0", "v1.1.0",
+        "1.2.0-beta", "1.10.0", "2.0.0-rc.1", "invalid"));
+    assertThat(versions.getBestMatch("1.x"), is("1.10.0"));
+    assertThat(versions.getBestMatch("~1.1.0"), is("v1.1.0"));
+    assertThat(versions.getBestMatch("<=1.1.0"), is("v1.1.0"));
+    assertThat(versions.getBestMatch(">=1.0.0 <1.10.0"), is("v1.1.0"));
+    assertThat(versions.getBestMatch(">=1.2.0-beta <1.3.0"), is("1.2.0-beta"));
+    assertThat(versions.getBestMatch("*"), is("1.10.0"));
+    assertThat(versions.getBestMatch(""), is("1.10.0"));
+    assertThat(versions.getBestMatch("3.x"), is(nullValue()));
+    assertThat(versions.getBestMatch("3.x"), is(nullValue()));
+  }
+
 }
@@ -0,0 +1,7 @@
+package de.matrixweb.smaller.resource;
+
+/**
+ * @author markusw
+ */
+public interface MergingProcessor extends Processor {
+}
@@ -0,0 +1,34 @@
+package de.matrixweb.smaller.resource;
+
+import java.io.IOException;
+import java.util.Map;
+
+import de.matrixweb.vfs.VFS;
+
+/**
+ * @author markusw
+ */
+public interface Processor {
+
+  /**
+   * @param type
+   * @return Returns true if the given type is supported
+   */
+  boolean supportsType(Type type);
+
+  /**
+   * @param vfs
+   * @param resource
+   * @param options
+   * @return Returns the processed resource
+   * @throws IOException
+   */
+  Resource execute(VFS vfs, Resource resource, Map<String, Object> options)
+      throws IOException;
+
+  /**
+   * 
+   */
+  void dispose();
+
+}
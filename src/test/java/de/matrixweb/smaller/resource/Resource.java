@@ -0,0 +1,18 @@
+package de.matrixweb.smaller.resource;
+
+/**
+ * @author markusw
+ */
+public interface Resource {
+
+  /**
+   * @return Returns the absolute path in the VFS
+   */
+  String getPath();
+
+  /**
+   * @return Returns the resolver for other resources
+   */
+  ResourceResolver getResolver();
+
+}
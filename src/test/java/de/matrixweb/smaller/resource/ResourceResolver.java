@@ -0,0 +1,14 @@
+package de.matrixweb.smaller.resource;
+
+/**
+ * @author markusw
+ */
+public interface ResourceResolver {
+
+  /**
+   * @param path
+   * @return Returns the resource at the given path
+   */
+  Resource resolve(String path);
+
+}
@@ -0,0 +1,14 @@
+package de.matrixweb.smaller.resource;
+
+/**
+ * @author markusw
+ */
+public enum Type {
+
+  /** */
+  JS,
+
+  /** */
+  CSS
+
+}
@@ -0,0 +1,26 @@
+package de.matrixweb.vfs;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * In-memory stand-in for the smaller VFS used to compile and run generated
+ * processors in tests.
+ * 
+ * @author markusw
+ */
+public class VFS {
+
+  final Map<String, byte[]> files = new TreeMap<String, byte[]>();
+
+  /**
+   * @param path
+   * @return Returns the file at the given absolute path
+   * @throws IOException
+   */
+  public VFile find(final String path) throws IOException {
+    return new VFile(this, path);
+  }
+
+}
@@ -0,0 +1,125 @@
+package de.matrixweb.vfs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A file of the in-memory {@link VFS}. Folders exist implicitly as soon as
+ * they contain a file.
+ * 
+ * @author markusw
+ */
+public class VFile {
+
+  private final VFS vfs;
+
+  private final String path;
+
+  VFile(final VFS vfs, final String path) {
+    this.vfs = vfs;
+    this.path = path;
+  }
+
+  /**
+   * @return Returns the absolute path
+   */
+  public String getPath() {
+    return this.path;
+  }
+
+  /**
+   * @return Returns true if the file or folder exists
+   * @throws IOException
+   */
+  public boolean exists() throws IOException {
+    return this.vfs.files.containsKey(this.path) || isDirectory();
+  }
+
+  /**
+   * @return Returns true if this is a folder
+   * @throws IOException
+   */
+  public boolean isDirectory() throws IOException {
+    if ("/".equals(this.path)) {
+      return true;
+    }
+    for (final String file : this.vfs.files.keySet()) {
+      if (file.startsWith(this.path + '/')) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return Returns the parent folder
+   * @throws IOException
+   */
+  public VFile getParent() throws IOException {
+    final int idx = this.path.lastIndexOf('/');
+    return new VFile(this.vfs, idx > 0 ? this.path.substring(0, idx) : "/");
+  }
+
+  /**
+   * Folders exist implicitly, so this does nothing.
+   * 
+   * @throws IOException
+   */
+  public void mkdir() throws IOException {
+  }
+
+  /**
+   * @return Returns the files and folders directly in this folder
+   * @throws IOException
+   */
+  public List<VFile> getChildren() throws IOException {
+    final String prefix = "/".equals(this.path) ? "/" : this.path + '/';
+    final Set<String> children = new LinkedHashSet<String>();
+    for (final String file : this.vfs.files.keySet()) {
+      if (file.startsWith(prefix)) {
+        final int idx = file.indexOf('/', prefix.length());
+        children.add(idx == -1 ? file : file.substring(0, idx));
+      }
+    }
+    final List<VFile> list = new ArrayList<VFile>();
+    for (final String child : children) {
+      list.add(new VFile(this.vfs, child));
+    }
+    return list;
+  }
+
+  /**
+   * @return Returns the content
+   * @throws IOException
+   */
+  public InputStream getInputStream() throws IOException {
+    final byte[] content = this.vfs.files.get(this.path);
+    if (content == null) {
+      throw new IOException("Missing " + this.path);
+    }
+    return new ByteArrayInputStream(content);
+  }
+
+  /**
+   * @return Returns a stream replacing the content when closed
+   * @throws IOException
+   */
+  public OutputStream getOutputStream() throws IOException {
+    return new ByteArrayOutputStream() {
+      @Override
+      public void close() {
+        synchronized (VFile.this.vfs) {
+          VFile.this.vfs.files.put(VFile.this.path, toByteArray());
+        }
+      }
+    };
+  }
+
+}